@@ -0,0 +1,145 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.guestful.simplepool.ObjectPool;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Events and fakes shared by the benchmarks, run with the {@code jmh} Maven profile.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    static List<Event> reservations(int count) {
+        List<Event> events = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            events.add(new ReservationCreated("restaurant-" + (i % 10), "guest-" + i, 2 + i % 6));
+        }
+        return events;
+    }
+
+    /**
+     * @return a pool keeping one Kryo instance per thread
+     */
+    static ObjectPool<Kryo> kryoPool() {
+        ThreadLocal<Kryo> kryos = ThreadLocal.withInitial(Kryo::new);
+        return new ObjectPool<Kryo>() {
+            @Override
+            public Kryo borrow() {
+                return kryos.get();
+            }
+
+            @Override
+            public void yield(Kryo kryo) {
+            }
+        };
+    }
+
+    static KryoEventCodec kryoCodec() {
+        return new KryoEventCodec(kryoPool()).register(ReservationCreated.class, 10);
+    }
+
+    @Cluster
+    @Queue
+    public static class ReservationCreated extends Event {
+
+        private String restaurant;
+        private String guest;
+        private int partySize;
+        private Date date = new Date();
+
+        public ReservationCreated() {
+        }
+
+        ReservationCreated(String restaurant, String guest, int partySize) {
+            this.restaurant = restaurant;
+            this.guest = guest;
+            this.partySize = partySize;
+        }
+    }
+
+    /**
+     * Publishes nowhere, waiting for the given round trip time on each command or pipeline sync
+     */
+    static class LatencyJedisPool extends JedisPool {
+
+        private final long roundTripNanos;
+        volatile byte[] lastMessage;
+
+        LatencyJedisPool(long roundTrip, TimeUnit unit) {
+            super("localhost");
+            this.roundTripNanos = unit.toNanos(roundTrip);
+        }
+
+        @Override
+        public Jedis getResource() {
+            return new Jedis("localhost") {
+                @Override
+                public Long publish(byte[] channel, byte[] message) {
+                    lastMessage = message;
+                    roundTrip();
+                    return 1L;
+                }
+
+                @Override
+                public Pipeline pipelined() {
+                    return new Pipeline() {
+                        @Override
+                        public Response<Long> publish(byte[] channel, byte[] message) {
+                            lastMessage = message;
+                            return null;
+                        }
+
+                        @Override
+                        public void sync() {
+                            roundTrip();
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public void returnResource(Jedis resource) {
+        }
+
+        @Override
+        public void returnBrokenResource(Jedis resource) {
+        }
+
+        private void roundTrip() {
+            if (roundTripNanos > 0) {
+                LockSupport.parkNanos(roundTripNanos);
+            }
+        }
+    }
+
+}
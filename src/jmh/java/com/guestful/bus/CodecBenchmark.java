@@ -0,0 +1,123 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guestful.simplepool.ObjectPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to encode and decode an event with its type header, the way the transports do:
+ * <ul>
+ * <li>{@code registered}: {@link KryoEventCodec} with the event type registered, identified by a varint</li>
+ * <li>{@code unregistered}: {@link KryoEventCodec} without registration, identified by its class name</li>
+ * <li>{@code classAndObject}: Kryo's {@code writeClassAndObject}, used before codecs, for comparison</li>
+ * </ul>
+ * The payload size of each codec is printed during setup. {@link JsonEventCodec} is not measured since its cost is the
+ * one of the {@code JsonMapper} provided by the application.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CodecBenchmark {
+
+    @Param({"registered", "unregistered", "classAndObject"})
+    public String codec;
+
+    private final ObjectPool<Kryo> kryoPool = BenchmarkSupport.kryoPool();
+    private final Output output = new Output(256, -1);
+    private final Input input = new Input();
+    private final Map<String, Class<? extends Event>> eventTypes = Collections.singletonMap(EventMetadata.of(BenchmarkSupport.ReservationCreated.class).getTypeId(), BenchmarkSupport.ReservationCreated.class);
+    private EventCodec eventCodec;
+    private Event event;
+    private byte[] payload;
+
+    @Setup
+    public void setUp() throws Exception {
+        switch (codec) {
+            case "registered":
+                eventCodec = BenchmarkSupport.kryoCodec();
+                break;
+            case "unregistered":
+                eventCodec = new KryoEventCodec(kryoPool);
+                break;
+            default:
+                eventCodec = null;
+        }
+        event = BenchmarkSupport.reservations(1).get(0);
+        payload = Arrays.copyOf(output.getBuffer(), encode());
+        System.out.println(codec + " payload: " + payload.length + " bytes");
+    }
+
+    /**
+     * @return the payload size
+     */
+    @Benchmark
+    public int encode() throws Exception {
+        output.clear();
+        if (eventCodec == null) {
+            Kryo kryo = kryoPool.borrow();
+            try {
+                kryo.writeClassAndObject(output, event);
+            } finally {
+                kryoPool.yield(kryo);
+            }
+        } else {
+            TypeHeader.write(output, eventCodec, event.getClass());
+            output.writeBytes(eventCodec.encode(event));
+        }
+        return output.position();
+    }
+
+    @Benchmark
+    public Event decode() throws Exception {
+        input.setBuffer(payload);
+        if (eventCodec == null) {
+            Kryo kryo = kryoPool.borrow();
+            try {
+                return (Event) kryo.readClassAndObject(input);
+            } finally {
+                kryoPool.yield(kryo);
+            }
+        }
+        int typeId = TypeHeader.readTypeId(input);
+        Class<? extends Event> eventType = typeId == 0 ? eventTypes.get(TypeHeader.readName(input)) : eventCodec.getType(typeId);
+        return eventCodec.decode(Arrays.copyOfRange(payload, input.position(), payload.length), eventType);
+    }
+
+}
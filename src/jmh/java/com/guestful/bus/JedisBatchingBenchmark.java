@@ -0,0 +1,80 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events per second published by {@link JedisEventBus}, one Redis message per event as before batching, or all the
+ * events of a post packed in frames and pipelined. The fake pool waits for the round trip time on each command.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(JedisBatchingBenchmark.EVENTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JedisBatchingBenchmark {
+
+    static final int EVENTS = 500;
+
+    @Param({"0", "200"})
+    public int roundTripMicros;
+
+    @Param({"1", "100"})
+    public int maxBatchSize;
+
+    private JedisEventBus bus;
+    private List<Event> events;
+
+    @Setup
+    public void setUp() {
+        bus = new JedisEventBus(events -> {
+        }, new BenchmarkSupport.LatencyJedisPool(roundTripMicros, TimeUnit.MICROSECONDS), BenchmarkSupport.kryoCodec());
+        bus.setMaxBatchSize(maxBatchSize);
+        events = BenchmarkSupport.reservations(EVENTS);
+    }
+
+    @Benchmark
+    public void perEvent() {
+        for (Event event : events) {
+            bus.post(event);
+        }
+    }
+
+    @Benchmark
+    public void batched() {
+        bus.post(events);
+    }
+
+}
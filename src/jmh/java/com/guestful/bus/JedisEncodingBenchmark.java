@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guestful.simplepool.ObjectPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per event of the {@link JedisEventBus} Kryo path, to be run with {@code -prof gc}: {@code gc.alloc.rate.norm}
+ * gives the bytes allocated per event. The {@code legacy} methods reproduce the original path, before batching: one
+ * Redis message per event, encoded through a new stream, Kryo output and array, and decoded through a new input.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@OperationsPerInvocation(JedisEncodingBenchmark.EVENTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class JedisEncodingBenchmark {
+
+    static final int EVENTS = 100;
+
+    private final ObjectPool<Kryo> kryoPool = BenchmarkSupport.kryoPool();
+    private final List<byte[]> legacyMessages = new ArrayList<>();
+    private JedisEventBus sender;
+    private JedisEventBus receiver;
+    private List<Event> events;
+    private byte[] message;
+
+    @Setup
+    public void setUp(Blackhole blackhole) throws Exception {
+        BenchmarkSupport.LatencyJedisPool jedisPool = new BenchmarkSupport.LatencyJedisPool(0, TimeUnit.MICROSECONDS);
+        sender = new JedisEventBus(events -> {
+        }, jedisPool, kryoPool);
+        sender.setMaxBatchSize(EVENTS);
+        receiver = new JedisEventBus(events -> events.forEach(blackhole::consume), jedisPool, kryoPool);
+        events = BenchmarkSupport.reservations(EVENTS);
+        sender.post(events);
+        message = jedisPool.lastMessage;
+        for (Event event : events) {
+            legacyMessages.add(legacyEncode(event));
+        }
+    }
+
+    @Benchmark
+    public void send() {
+        sender.post(events);
+    }
+
+    @Benchmark
+    public void receive() throws Exception {
+        receiver.receive(message);
+    }
+
+    @Benchmark
+    public void legacySend(Blackhole blackhole) throws Exception {
+        for (Event event : events) {
+            blackhole.consume(legacyEncode(event));
+        }
+    }
+
+    @Benchmark
+    public void legacyReceive(Blackhole blackhole) throws Exception {
+        for (byte[] message : legacyMessages) {
+            Kryo kryo = kryoPool.borrow();
+            try {
+                blackhole.consume(kryo.readClassAndObject(new Input(message)));
+            } finally {
+                kryoPool.yield(kryo);
+            }
+        }
+    }
+
+    private byte[] legacyEncode(Event event) throws Exception {
+        Kryo kryo = kryoPool.borrow();
+        try {
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            Output output = new Output(baos);
+            kryo.writeClassAndObject(output, event);
+            output.close();
+            return baos.toByteArray();
+        } finally {
+            kryoPool.yield(kryo);
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.google.common.eventbus.AllowConcurrentEvents;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Posts per second on {@link LocalEventBus} and {@link GuavaEventBus}, both running their handlers on the posting
+ * thread so that only the dispatch is measured. The Guava subscribers allow concurrent events, otherwise Guava would
+ * also serialize their calls. The {@code contended} methods post from 4 threads on the same bus.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LocalVsGuavaBenchmark {
+
+    @Param({"1", "10"})
+    public int handlers;
+
+    private LocalEventBus local;
+    private GuavaEventBus guava;
+    private Event event;
+
+    @Setup
+    public void setUp() {
+        local = new LocalEventBus(Runnable::run);
+        guava = new GuavaEventBus(Runnable::run, (e, context) -> {
+        });
+        for (int i = 0; i < handlers; i++) {
+            local.register(new Counter());
+            guava.register(new Counter());
+        }
+        event = BenchmarkSupport.reservations(1).get(0);
+    }
+
+    @Benchmark
+    public void local() {
+        local.post(event);
+    }
+
+    @Benchmark
+    public void guava() {
+        guava.post(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void localContended() {
+        local.post(event);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void guavaContended() {
+        guava.post(event);
+    }
+
+    public static class Counter {
+
+        long count;
+
+        @Subscribe
+        @com.google.common.eventbus.Subscribe
+        @AllowConcurrentEvents
+        public void on(BenchmarkSupport.ReservationCreated event) {
+            count++;
+        }
+    }
+
+}
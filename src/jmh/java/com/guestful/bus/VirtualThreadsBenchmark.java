@@ -0,0 +1,106 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Events per second handled by a {@link LocalEventBus} whose handler blocks for {@code blockMillis}, like a handler
+ * calling a remote service, when running on:
+ * <ul>
+ * <li>{@code platform}: a fixed pool of {@value #POOL_SIZE} platform threads</li>
+ * <li>{@code virtual}: a virtual thread per call</li>
+ * <li>{@code virtualLimited}: a virtual thread per call, at most {@value #MAX_CONCURRENCY} at the same time</li>
+ * </ul>
+ * On JVMs without virtual threads, the virtual executor falls back to a cached pool of platform threads.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(VirtualThreadsBenchmark.EVENTS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class VirtualThreadsBenchmark {
+
+    static final int EVENTS = 1000;
+    static final int POOL_SIZE = 16;
+    static final int MAX_CONCURRENCY = 64;
+
+    @Param({"platform", "virtual", "virtualLimited"})
+    public String executor;
+
+    @Param({"1"})
+    public int blockMillis;
+
+    private ExecutorService executorService;
+    private LocalEventBus bus;
+    private List<Event> events;
+    private volatile CountDownLatch handled;
+
+    @Setup
+    public void setUp() {
+        executorService = executor.equals("platform") ? Executors.newFixedThreadPool(POOL_SIZE) : EventExecutors.newVirtualThreadExecutor();
+        Executor busExecutor = executor.equals("virtualLimited") ? EventExecutors.limit(executorService, MAX_CONCURRENCY) : executorService;
+        bus = new LocalEventBus(busExecutor);
+        bus.register(new BlockingHandler());
+        events = BenchmarkSupport.reservations(EVENTS);
+    }
+
+    @TearDown
+    public void tearDown() {
+        bus.close();
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    public void post() throws InterruptedException {
+        CountDownLatch latch = handled = new CountDownLatch(EVENTS);
+        bus.post(events);
+        latch.await();
+    }
+
+    public class BlockingHandler {
+
+        @Subscribe
+        public void on(BenchmarkSupport.ReservationCreated event) throws InterruptedException {
+            Thread.sleep(blockMillis);
+            handled.countDown();
+        }
+    }
+
+}
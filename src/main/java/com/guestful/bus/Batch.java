@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.lang.annotation.*;
+
+/**
+ * Makes a {@link Subscribe} method of a handler registered on a {@link LocalEventBus} receive events in batches. The
+ * method parameter must be a {@code List} of the handled event type. Events posted from any thread are collected until
+ * the batch is full or until the first collected event has waited for the maximum linger time.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Batch {
+
+    /**
+     * Maximum number of events in a batch
+     */
+    int maxSize() default 100;
+
+    /**
+     * Maximum time in milliseconds an event waits for its batch to be full
+     */
+    long maxLinger() default 1000;
+}
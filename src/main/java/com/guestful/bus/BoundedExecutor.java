@@ -0,0 +1,335 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs tasks on an executor through a bounded queue, applying a {@link DispatchPolicy} when the queue is full, so that
+ * subscribers falling behind do not make the queue grow without limit.
+ * <p>
+ * Tasks dispatching an {@link Event} take the priority set for its type, 0 by default. Queued tasks are run by
+ * decreasing priority, then in submission order, by at most a given number of threads of the executor. Other tasks run
+ * first. When the queue is full, they are run by the posting thread or wait for room like events, but are rejected with
+ * a {@link RejectedExecutionException} instead of being dropped or shed, since their posters could not tell.
+ * <p>
+ * The drains of the executors stacked on this one are always queued, even beyond the capacity and whatever the policy:
+ * their stacked executor has already accepted its tasks, which would otherwise be run later although the poster got an
+ * exception. A stacked executor schedules at most one drain per stripe or limit at a time, which bounds them. The tasks
+ * waiting in a {@link LimitedExecutor} stacked on this one, like the calls of the handlers with their own concurrency
+ * limit, count against the capacity until they run: a slow limited handler fills the queue, and the policy applies to
+ * the new events, instead of its limit queuing them without bound.
+ * <p>
+ * The queue size, the rejected tasks and the tasks run by the posting threads are counted.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class BoundedExecutor implements Executor {
+
+    private static final Logger LOGGER = Logger.getLogger(BoundedExecutor.class.getName());
+
+    private final Executor executor;
+    private final int parallelism;
+    private final int capacity;
+    private final DispatchPolicy policy;
+    private final NavigableMap<Integer, ArrayDeque<Runnable>> queues = new TreeMap<>(Collections.reverseOrder());
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger running = new AtomicInteger();
+    private final Map<Class<?>, Integer> priorities = new ConcurrentHashMap<>();
+    private volatile Map<Class<?>, Integer> resolvedPriorities = new ConcurrentHashMap<>();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder callerRuns = new LongAdder();
+    private long blockTimeout = 1000;
+    private int size;
+    private int held;
+
+    /**
+     * @param parallelism maximum number of threads of the executor running tasks at the same time
+     * @param capacity    maximum number of queued tasks
+     */
+    public BoundedExecutor(Executor executor, int parallelism, int capacity, DispatchPolicy policy) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism: " + parallelism);
+        if (capacity < 1) throw new IllegalArgumentException("capacity: " + capacity);
+        this.executor = executor;
+        this.parallelism = parallelism;
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * @param blockTimeout maximum time a posting thread waits for room in the queue with {@link DispatchPolicy#BLOCK}
+     */
+    public void setBlockTimeout(long blockTimeout, TimeUnit unit) {
+        this.blockTimeout = unit.toMillis(blockTimeout);
+    }
+
+    /**
+     * @param priority priority of the events of this type and its sub-types. Events of lower priority are shed first.
+     */
+    public void setPriority(Class<? extends Event> eventType, int priority) {
+        priorities.put(eventType, priority);
+        resolvedPriorities = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return number of queued tasks, including the ones waiting in the limits stacked on this executor
+     */
+    public int getQueueSize() {
+        lock.lock();
+        try {
+            return size + held;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return number of tasks dropped, shed, or rejected after the block timeout
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return number of tasks run by the posting threads because the queue was full
+     */
+    public long getCallerRuns() {
+        return callerRuns.sum();
+    }
+
+    /**
+     * @throws RejectedExecutionException if the queue is full, unless the policy is to run the task in the calling
+     *                                    thread or the queue has room before the block timeout
+     */
+    @Override
+    public void execute(Runnable task) {
+        execute(Integer.MAX_VALUE, task, true, false);
+    }
+
+    /**
+     * Queues a task dispatching this event, with the priority of its type
+     */
+    public void execute(Event event, Runnable task) {
+        execute(priority(event.getClass()), task, true, true);
+    }
+
+    /**
+     * Queues a task whatever the capacity and the policy, because its events were already accepted: the drains of the
+     * executors stacked on this one, or the batches of events handed to their handlers
+     */
+    void executeAccepted(Runnable task) {
+        execute(Integer.MAX_VALUE, task, false, false);
+    }
+
+    /**
+     * Runs a task of an executor stacked on the given one, queued whatever the capacity if it is bounded
+     */
+    static void executeAccepted(Executor executor, Runnable task) {
+        if (executor instanceof BoundedExecutor) {
+            ((BoundedExecutor) executor).executeAccepted(task);
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Counts a task waiting in a limit stacked on this executor against the capacity, until {@link #release()}
+     */
+    void hold() {
+        lock.lock();
+        try {
+            held++;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void release() {
+        lock.lock();
+        try {
+            held--;
+            notFull.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @param bounded   whether the policy applies when the queue is full
+     * @param droppable whether the policy may drop or shed the task, instead of rejecting it
+     */
+    private void execute(int priority, Runnable task, boolean bounded, boolean droppable) {
+        lock.lock();
+        try {
+            if (bounded && size + held >= capacity && !makeRoom(priority, task, droppable)) {
+                return;
+            }
+            queues.computeIfAbsent(priority, p -> new ArrayDeque<>()).addLast(task);
+            size++;
+        } finally {
+            lock.unlock();
+        }
+        schedule();
+    }
+
+    /**
+     * @return true if the task can be queued, false if it has been handled by the policy
+     */
+    private boolean makeRoom(int priority, Runnable task, boolean droppable) {
+        switch (policy) {
+            case CALLER_RUNS:
+                lock.unlock();
+                try {
+                    callerRuns.increment();
+                    task.run();
+                } finally {
+                    lock.lock();
+                }
+                return false;
+            case BLOCK:
+                long nanos = TimeUnit.MILLISECONDS.toNanos(blockTimeout);
+                try {
+                    while (size + held >= capacity) {
+                        if (nanos <= 0) {
+                            rejected.increment();
+                            throw new RejectedExecutionException("Dispatch queue still full after " + blockTimeout + "ms");
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    rejected.increment();
+                    throw new RejectedExecutionException("Interrupted while waiting for the dispatch queue", e);
+                }
+                return true;
+            case SHED:
+                Map.Entry<Integer, ArrayDeque<Runnable>> lowest = queues.lastEntry();
+                if (lowest != null && lowest.getKey() < priority) {
+                    lowest.getValue().pollFirst();
+                    if (lowest.getValue().isEmpty()) {
+                        queues.remove(lowest.getKey());
+                    }
+                    size--;
+                    rejected.increment();
+                    if (LOGGER.isLoggable(Level.FINEST)) {
+                        LOGGER.finest("Shed a task of priority " + lowest.getKey() + " for a task of priority " + priority);
+                    }
+                    return true;
+                }
+                return reject(droppable);
+            default:
+                return reject(droppable);
+        }
+    }
+
+    private boolean reject(boolean droppable) {
+        rejected.increment();
+        if (!droppable) {
+            throw new RejectedExecutionException("Dispatch queue full");
+        }
+        return false;
+    }
+
+    private void schedule() {
+        for (int n; (n = running.get()) < parallelism && hasQueued(); ) {
+            if (running.compareAndSet(n, n + 1)) {
+                try {
+                    executor.execute(this::drain);
+                } catch (RuntimeException e) {
+                    running.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = poll()) != null) {
+                task.run();
+            }
+        } finally {
+            running.decrementAndGet();
+            schedule();
+        }
+    }
+
+    private boolean hasQueued() {
+        lock.lock();
+        try {
+            return size > 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Runnable poll() {
+        lock.lock();
+        try {
+            Map.Entry<Integer, ArrayDeque<Runnable>> highest = queues.firstEntry();
+            if (highest == null) {
+                return null;
+            }
+            Runnable task = highest.getValue().pollFirst();
+            if (highest.getValue().isEmpty()) {
+                queues.remove(highest.getKey());
+            }
+            size--;
+            notFull.signal();
+            return task;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int priority(Class<?> eventType) {
+        if (priorities.isEmpty()) {
+            return 0;
+        }
+        return resolvedPriorities.computeIfAbsent(eventType, type -> {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                Integer priority = priorities.get(c);
+                if (priority == null) {
+                    for (Class<?> i : c.getInterfaces()) {
+                        priority = priorities.get(i);
+                        if (priority != null) break;
+                    }
+                }
+                if (priority != null) {
+                    return priority;
+                }
+            }
+            return 0;
+        });
+    }
+
+}
@@ -17,8 +17,20 @@ package com.guestful.bus;
 
 import java.lang.annotation.*;
 
+/**
+ * Marks the events broadcast to the other nodes of the cluster. Transports only subscribe to the channels of the
+ * {@link Cluster} types their delegate has handlers for: to receive events from other nodes, register handlers on these
+ * types, or on {@link Event} to receive them all, rather than on an interface or a super type without this annotation.
+ */
 @Inherited
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface Cluster {
+
+    /**
+     * Channel on which events of this type are broadcast. Nodes only receive the events of the channels of the types
+     * they have handlers for. Events without a channel share the default one. Sub-types should keep the channel of
+     * their parent so that handlers registered on the parent type receive them.
+     */
+    String channel() default "";
 }
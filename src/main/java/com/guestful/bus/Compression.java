@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates the payloads of the cluster transports above a size threshold, and keeps compression metrics.
+ * <p>
+ * The first byte of a payload is left as is, and its high bit is set to mark compressed payloads: it is followed by the
+ * uncompressed size and the deflated bytes of the rest of the payload. Payloads below the threshold, or which would not
+ * get smaller, are sent unchanged.
+ * <p>
+ * The uncompressed size read from a received payload is checked before allocating it: it cannot exceed
+ * {@link #MAX_UNCOMPRESSED_SIZE}, nor what deflate can expand from the received bytes.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class Compression {
+
+    private static final int FLAG = 0x80;
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    // deflate cannot expand a byte into more than 1032 bytes
+    private static final int MAX_DEFLATE_RATIO = 1032;
+    static final int MAX_UNCOMPRESSED_SIZE = 64 * 1024 * 1024;
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    private final int threshold;
+    private final ThreadLocal<Deflater> deflaters;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[8192]);
+    private final LongAdder compressedPayloads = new LongAdder();
+    private final LongAdder uncompressedBytes = new LongAdder();
+    private final LongAdder compressedBytes = new LongAdder();
+    private final LongAdder compressionTime = new LongAdder();
+
+    /**
+     * Compresses with {@link Deflater#BEST_SPEED}
+     *
+     * @param threshold minimum payload size in bytes to compress
+     */
+    public Compression(int threshold) {
+        this(threshold, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param threshold minimum payload size in bytes to compress
+     * @param level     {@link Deflater} compression level
+     */
+    public Compression(int threshold, int level) {
+        if (threshold < 1) throw new IllegalArgumentException("threshold: " + threshold);
+        this.threshold = threshold;
+        this.deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    }
+
+    /**
+     * @return number of payloads sent compressed
+     */
+    public long getCompressedPayloads() {
+        return compressedPayloads.sum();
+    }
+
+    /**
+     * @return compressed size divided by uncompressed size of the payloads sent compressed
+     */
+    public double getCompressionRatio() {
+        long uncompressed = uncompressedBytes.sum();
+        return uncompressed == 0 ? 1 : (double) compressedBytes.sum() / uncompressed;
+    }
+
+    /**
+     * @return time spent deflating payloads above the threshold, whether they were sent compressed or not
+     */
+    public long getCompressionTime(TimeUnit unit) {
+        return unit.convert(compressionTime.sum(), TimeUnit.NANOSECONDS);
+    }
+
+    byte[] compress(byte[] payload) {
+        if (payload.length < threshold || (payload[0] & FLAG) != 0) {
+            return payload;
+        }
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(payload, 1, payload.length - 1);
+        deflater.finish();
+        byte[] buffer = buffers.get();
+        if (buffer.length < payload.length) {
+            buffer = new byte[payload.length];
+            if (buffer.length <= MAX_RETAINED_BUFFER) {
+                buffers.set(buffer);
+            }
+        }
+        int length = 5;
+        while (!deflater.finished() && length < payload.length) {
+            length += deflater.deflate(buffer, length, payload.length - length);
+        }
+        compressionTime.add(System.nanoTime() - start);
+        if (!deflater.finished()) {
+            return payload;
+        }
+        buffer[0] = (byte) (payload[0] | FLAG);
+        writeInt(buffer, 1, payload.length - 1);
+        compressedPayloads.increment();
+        uncompressedBytes.add(payload.length);
+        compressedBytes.add(length);
+        byte[] compressed = new byte[length];
+        System.arraycopy(buffer, 0, compressed, 0, length);
+        return compressed;
+    }
+
+    static boolean isCompressed(byte[] payload) {
+        return payload.length > 0 && (payload[0] & FLAG) != 0;
+    }
+
+    static byte[] decompress(byte[] payload) {
+        return decompress(payload, MAX_UNCOMPRESSED_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum uncompressed size accepted
+     */
+    static byte[] decompress(byte[] payload, int maxSize) {
+        if (payload.length < 5) {
+            throw new IllegalArgumentException("Truncated compressed payload");
+        }
+        int size = readInt(payload, 1);
+        if (size < 0 || size >= maxSize || (long) size > (long) (payload.length - 5) * MAX_DEFLATE_RATIO) {
+            throw new IllegalArgumentException("Invalid uncompressed size " + size + " for a compressed payload of " + payload.length + " bytes");
+        }
+        byte[] uncompressed = new byte[1 + size];
+        uncompressed[0] = (byte) (payload[0] & ~FLAG);
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(payload, 5, payload.length - 5);
+        try {
+            for (int length = 1; length < uncompressed.length; ) {
+                int n = inflater.inflate(uncompressed, length, uncompressed.length - length);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalArgumentException("Truncated compressed payload");
+                }
+                length += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException("Corrupted compressed payload: " + e.getMessage(), e);
+        }
+        return uncompressed;
+    }
+
+    private static void writeInt(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) (value >>> 24);
+        bytes[pos + 1] = (byte) (value >>> 16);
+        bytes[pos + 2] = (byte) (value >>> 8);
+        bytes[pos + 3] = (byte) value;
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8 | bytes[pos + 3] & 0xFF;
+    }
+
+}
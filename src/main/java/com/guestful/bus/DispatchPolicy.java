@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+/**
+ * What a {@link BoundedExecutor} does with a new task when its queue is full.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public enum DispatchPolicy {
+
+    /**
+     * Runs the task in the posting thread, which slows down the producers
+     */
+    CALLER_RUNS,
+
+    /**
+     * Waits until a task is dequeued, up to the block timeout, then rejects the task
+     */
+    BLOCK,
+
+    /**
+     * Discards the new task
+     */
+    DROP,
+
+    /**
+     * Discards the oldest queued task of the lowest priority below the priority of the new task, or the new task if
+     * there is none
+     */
+    SHED
+
+}
@@ -16,6 +16,9 @@
 package com.guestful.bus;
 
 import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.stream.Stream;
 
 /**
@@ -27,6 +30,41 @@ public interface EventBus {
 
     void post(Stream<? extends Event> eventStream);
 
+    /**
+     * Posts events and tells when this bus is done with them: sent by transports, stored by schedulers, dispatched by
+     * local buses. By default, posts synchronously and returns a completed stage, or a failed one if the post failed.
+     */
+    default CompletionStage<Void> postAsync(Stream<? extends Event> eventStream) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            post(eventStream);
+            future.complete(null);
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        return future;
+    }
+
+    /**
+     * Tells whether this bus may do something with events of the given type. Transports use it to skip the events
+     * nobody is interested in without decoding them. Implementations may answer true when they do not know.
+     * <p>
+     * Answering false for a type the bus handles loses its events: {@link MultipleEventBus} does not route them to this
+     * bus and transports do not subscribe to them. Answers may be cached by callers, so implementations whose accepted
+     * types change, for example when handlers are registered, must call {@link EventMetadata#invalidateRoutes()}.
+     */
+    default boolean accepts(Class<? extends Event> eventType) {
+        return getAcceptedTypes().stream().anyMatch(type -> type.isAssignableFrom(eventType));
+    }
+
+    /**
+     * @return the types, including their sub-types, of the events this bus may do something with. Transports use them
+     * to only subscribe to the relevant channels.
+     */
+    default Collection<Class<?>> getAcceptedTypes() {
+        return Collections.singleton(Event.class);
+    }
+
     default void post(Event event) {
         post(Stream.of(event));
     }
@@ -39,4 +77,12 @@ public interface EventBus {
         post(events.stream());
     }
 
+    default CompletionStage<Void> postAsync(Event... events) {
+        return postAsync(Stream.of(events));
+    }
+
+    default CompletionStage<Void> postAsync(Collection<? extends Event> events) {
+        return postAsync(events.stream());
+    }
+
 }
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+/**
+ * Serializes events to bytes for the transports and schedulers storing or sending them.
+ * <p>
+ * The encoded bytes do not need to identify the event type: transports send it next to the payload, as the integer
+ * returned by {@link #getTypeId(Class)} when the codec registers the type, or as the class name otherwise.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface EventCodec {
+
+    /**
+     * @return name stored with the encoded events to find back the codec able to decode them
+     */
+    String getName();
+
+    byte[] encode(Event event);
+
+    <T extends Event> T decode(byte[] bytes, Class<T> eventType);
+
+    /**
+     * @return the positive id registered for this event type, or 0 when the type must be identified by its class name
+     */
+    default int getTypeId(Class<? extends Event> eventType) {
+        return 0;
+    }
+
+    /**
+     * @return the event type registered with this id, or null if none
+     */
+    default Class<? extends Event> getType(int typeId) {
+        return null;
+    }
+
+}
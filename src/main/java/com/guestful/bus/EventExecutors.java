@@ -0,0 +1,88 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors suited to the event buses, whose handlers and transports often block.
+ * <p>
+ * {@link #newVirtualThreadExecutor()} runs each task on its own virtual thread when the JVM supports them, so blocking
+ * handlers or transport calls do not exhaust a pool. Since virtual threads are unbounded, {@link #limit(Executor, int)}
+ * caps how many tasks may use a downstream resource, like a connection pool, at the same time.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class EventExecutors {
+
+    private static final MethodHandle VIRTUAL_THREAD_PER_TASK = virtualThreadPerTask();
+
+    private EventExecutors() {
+    }
+
+    /**
+     * @return true if {@link #newVirtualThreadExecutor()} returns an executor of virtual threads
+     */
+    public static boolean isVirtualThreadSupported() {
+        return VIRTUAL_THREAD_PER_TASK != null;
+    }
+
+    /**
+     * @return an executor starting a virtual thread per task, or on JVMs without virtual threads, a cached pool of
+     * daemon threads
+     */
+    public static ExecutorService newVirtualThreadExecutor() {
+        if (VIRTUAL_THREAD_PER_TASK != null) {
+            try {
+                return (ExecutorService) VIRTUAL_THREAD_PER_TASK.invokeExact();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Unable to create virtual thread executor: " + e.getMessage(), e);
+            }
+        }
+        AtomicInteger ids = new AtomicInteger();
+        return Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, EventExecutors.class.getSimpleName() + "-" + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return an executor running at most maxConcurrency tasks at the same time on the given executor, queuing the
+     * others without holding a thread
+     */
+    public static Executor limit(Executor executor, int maxConcurrency) {
+        return new LimitedExecutor(executor, maxConcurrency);
+    }
+
+    private static MethodHandle virtualThreadPerTask() {
+        try {
+            MethodHandle factory = MethodHandles.publicLookup().findStatic(Executors.class, "newVirtualThreadPerTaskExecutor", MethodType.methodType(ExecutorService.class));
+            // fails when virtual threads are a disabled preview feature
+            ((ExecutorService) factory.invokeExact()).shutdown();
+            return factory;
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.lang.ref.WeakReference;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Routing metadata of an event class, resolved once per class from its {@link Cluster} and {@link Queue} annotations.
+ * <p>
+ * Buses routing events by type cache their decisions: {@link #getRoutesVersion()} changes each time an event bus
+ * changes the event types it {@link EventBus#accepts(Class) accepts} through {@link #invalidateRoutes()}, which also
+ * notifies the {@link #addRoutesListener(Runnable) listeners}, like transports subscribing to the accepted types.
+ * Listeners are held weakly, so that a bus never closed is not kept reachable by this class.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public final class EventMetadata {
+
+    static final String DEFAULT_CHANNEL = "eventbus";
+
+    private static final Set<Class<?>> CLUSTER_TYPES = ConcurrentHashMap.newKeySet();
+    private static final Set<Class<?>> QUEUE_TYPES = ConcurrentHashMap.newKeySet();
+    private static final ClassValue<EventMetadata> METADATA = new ClassValue<EventMetadata>() {
+        @Override
+        protected EventMetadata computeValue(Class<?> type) {
+            EventMetadata metadata = new EventMetadata(type);
+            if (metadata.isCluster()) {
+                CLUSTER_TYPES.add(type);
+            }
+            if (metadata.isQueue()) {
+                QUEUE_TYPES.add(type);
+            }
+            return metadata;
+        }
+    };
+
+    private static final Logger LOGGER = Logger.getLogger(EventMetadata.class.getName());
+    private static final AtomicLong ROUTES_VERSION = new AtomicLong();
+    private static final List<WeakReference<Runnable>> ROUTES_LISTENERS = new CopyOnWriteArrayList<>();
+
+    private final Class<?> type;
+    private final boolean cluster;
+    private final String channel;
+    private final boolean queue;
+    private final String queueName;
+
+    private EventMetadata(Class<?> type) {
+        this.type = type;
+        Cluster cluster = type.getAnnotation(Cluster.class);
+        this.cluster = cluster != null;
+        if (cluster == null) {
+            this.channel = null;
+        } else {
+            String name = cluster.channel().trim();
+            this.channel = name.length() == 0 ? DEFAULT_CHANNEL : DEFAULT_CHANNEL + "." + name;
+        }
+        Queue queue = type.getAnnotation(Queue.class);
+        this.queue = queue != null;
+        if (queue == null) {
+            this.queueName = null;
+        } else {
+            String name = queue.name() == null ? "" : queue.name().trim();
+            this.queueName = name.length() == 0 ? "events." + type.getSimpleName() : name;
+        }
+    }
+
+    public static EventMetadata of(Class<?> type) {
+        return METADATA.get(type);
+    }
+
+    /**
+     * @return the {@link Cluster} types whose metadata was resolved so far
+     */
+    static Collection<Class<?>> getClusterTypes() {
+        return Collections.unmodifiableSet(CLUSTER_TYPES);
+    }
+
+    /**
+     * @return the {@link Queue} types whose metadata was resolved so far
+     */
+    static Collection<Class<?>> getQueueTypes() {
+        return Collections.unmodifiableSet(QUEUE_TYPES);
+    }
+
+    public static long getRoutesVersion() {
+        return ROUTES_VERSION.get();
+    }
+
+    /**
+     * Must be called by event buses when the event types they accept change
+     */
+    public static void invalidateRoutes() {
+        ROUTES_VERSION.incrementAndGet();
+        for (WeakReference<Runnable> reference : ROUTES_LISTENERS) {
+            Runnable listener = reference.get();
+            if (listener == null) {
+                ROUTES_LISTENERS.remove(reference);
+                continue;
+            }
+            try {
+                listener.run();
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Routes listener error: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * @param listener called from the thread invalidating the routes, after the version change. Only weakly
+     *                 referenced: the caller must keep a reference to it, typically in a field, for as long as it
+     *                 listens.
+     */
+    public static void addRoutesListener(Runnable listener) {
+        ROUTES_LISTENERS.add(new WeakReference<>(listener));
+    }
+
+    public static void removeRoutesListener(Runnable listener) {
+        ROUTES_LISTENERS.removeIf(reference -> {
+            Runnable registered = reference.get();
+            return registered == null || registered == listener;
+        });
+    }
+
+    public Class<?> getType() {
+        return type;
+    }
+
+    /**
+     * @return true when the type is annotated with {@link Cluster}
+     */
+    public boolean isCluster() {
+        return cluster;
+    }
+
+    /**
+     * @return the Redis channel of a {@link Cluster} event type, null otherwise
+     */
+    public String getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return true when the type is annotated with {@link Queue}
+     */
+    public boolean isQueue() {
+        return queue;
+    }
+
+    /**
+     * @return the IronMQ queue of a {@link Queue} event type, null otherwise
+     */
+    public String getQueueName() {
+        return queueName;
+    }
+
+    /**
+     * @return identifier of the type written in the headers of serialized events
+     */
+    public String getTypeId() {
+        return type.getName();
+    }
+
+    /**
+     * @return short name of the type used by IronMQ messages
+     */
+    public String getSimpleName() {
+        return type.getSimpleName();
+    }
+
+    @Override
+    public String toString() {
+        return "EventMetadata{" +
+            "type=" + type.getName() +
+            ", channel='" + channel + '\'' +
+            ", queueName='" + queueName + '\'' +
+            '}';
+    }
+
+}
@@ -16,31 +16,93 @@
 package com.guestful.bus;
 
 import com.google.common.eventbus.AsyncEventBus;
+import com.google.common.eventbus.DeadEvent;
+import com.google.common.eventbus.Subscribe;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.Executor;
 import java.util.stream.Stream;
 
 /**
  * date 2014-06-02
+ * <p>
+ * Guava calls each subscriber through the executor: with {@link EventExecutors#newVirtualThreadExecutor() virtual
+ * threads}, each call runs on its own thread, and a concurrency limit bounds the calls running at the same time.
+ * <p>
+ * The accepted types are the parameter types of the {@link Subscribe} methods found on the registered handlers, their
+ * super classes and interfaces, as Guava finds them. Once a {@link DeadEvent} subscriber is registered, all events are
+ * accepted so that the ones without subscriber still reach it.
  *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class GuavaEventBus implements EventBus {
 
-    private final AsyncEventBus eventBus;
+    private final com.google.common.eventbus.EventBus eventBus;
+    private final BoundedExecutor boundedExecutor;
+    private final Map<Class<?>, Integer> handledTypes = new HashMap<>();
+    private volatile ConcurrentMap<Class<?>, Boolean> accepted = new ConcurrentHashMap<>();
 
     public GuavaEventBus(Executor executor, SubscriberExceptionHandler subscriberExceptionHandler) {
         this.eventBus = new AsyncEventBus(executor, subscriberExceptionHandler);
+        this.boundedExecutor = null;
+    }
+
+    /**
+     * Dispatches each event to all its subscribers in one task of the bounded executor, instead of queuing it without
+     * limit in Guava's asynchronous bus, so that events can be dropped or shed by priority when subscribers fall behind.
+     */
+    public GuavaEventBus(BoundedExecutor executor, SubscriberExceptionHandler subscriberExceptionHandler) {
+        this.eventBus = new com.google.common.eventbus.EventBus(subscriberExceptionHandler);
+        this.boundedExecutor = executor;
+    }
+
+    /**
+     * @param maxConcurrency maximum number of subscriber calls running at the same time
+     */
+    public GuavaEventBus(Executor executor, SubscriberExceptionHandler subscriberExceptionHandler, int maxConcurrency) {
+        this(new LimitedExecutor(executor, maxConcurrency), subscriberExceptionHandler);
     }
 
     @Override
     public void post(Stream<? extends Event> eventStream) {
-        eventStream.forEach(this.eventBus::post);
+        if (boundedExecutor == null) {
+            eventStream.forEach(this.eventBus::post);
+        } else {
+            eventStream.forEach(event -> boundedExecutor.execute(event, () -> eventBus.post(event)));
+        }
+    }
+
+    @Override
+    public boolean accepts(Class<? extends Event> eventType) {
+        return accepted.computeIfAbsent(eventType, type -> {
+            synchronized (handledTypes) {
+                return handledTypes.containsKey(DeadEvent.class) || handledTypes.keySet().stream().anyMatch(handledType -> handledType.isAssignableFrom(type));
+            }
+        });
+    }
+
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        synchronized (handledTypes) {
+            return handledTypes.containsKey(DeadEvent.class) ? Collections.singleton(Event.class) : new ArrayList<>(handledTypes.keySet());
+        }
     }
 
     public void register(Object handler) {
         this.eventBus.register(handler);
+        updateHandledTypes(handler, 1);
     }
 
     public void register(Object... handlers) {
@@ -51,6 +113,34 @@ public class GuavaEventBus implements EventBus {
 
     public void unregister(Object handler) {
         this.eventBus.unregister(handler);
+        updateHandledTypes(handler, -1);
+    }
+
+    private void updateHandledTypes(Object handler, int delta) {
+        synchronized (handledTypes) {
+            for (Class<?> c : getSuperTypes(handler.getClass())) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.isAnnotationPresent(Subscribe.class) && method.getParameterCount() == 1) {
+                        handledTypes.merge(method.getParameterTypes()[0], delta, (count, d) -> count + d == 0 ? null : count + d);
+                    }
+                }
+            }
+            accepted = new ConcurrentHashMap<>();
+            EventMetadata.invalidateRoutes();
+        }
+    }
+
+    private static Set<Class<?>> getSuperTypes(Class<?> type) {
+        Set<Class<?>> types = new HashSet<>();
+        Deque<Class<?>> toVisit = new ArrayDeque<>();
+        toVisit.add(type);
+        for (Class<?> c; (c = toVisit.poll()) != null; ) {
+            if (c != Object.class && types.add(c)) {
+                if (c.getSuperclass() != null) toVisit.add(c.getSuperclass());
+                Collections.addAll(toVisit, c.getInterfaces());
+            }
+        }
+        return types;
     }
 
 }
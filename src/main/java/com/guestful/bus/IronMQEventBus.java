@@ -18,8 +18,23 @@ package com.guestful.bus;
 import com.guestful.client.ironio.mq.IronProject;
 import com.guestful.json.JsonMapper;
 
+import javax.annotation.PreDestroy;
+import javax.json.Json;
 import javax.json.JsonObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Base64;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -28,33 +43,277 @@ import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
 
 /**
+ * Offers {@link Queue} events to their IronMQ queue.
+ * <p>
+ * Messages are offered in chunks respecting the IronMQ limit of messages per request. With an executor, the chunks of
+ * all the queues are offered in parallel and {@link #post(Stream)} does not wait for them: use {@link #postAsync(Stream)}
+ * to know when they are offered. With a linger time, messages posted within that window are coalesced per queue.
+ * <p>
+ * Events are written as JSON in the message body, or as base64 data encoded with an {@link EventCodec} when one is set.
+ *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class IronMQEventBus implements EventBus {
 
     private static final Logger LOGGER = Logger.getLogger(IronMQEventBus.class.getName());
 
-    private final IronProject project;
+    private final BiConsumer<String, List<JsonObject>> offerer;
     private final JsonMapper mapper;
+    private final Executor executor;
+    private final Map<String, Pending> pending = new HashMap<>();
+    private int maxChunkSize = 100;
+    private volatile long linger;
+    private volatile ScheduledExecutorService flusher;
+    private EventCodec codec;
 
     public IronMQEventBus(IronProject project, JsonMapper mapper) {
-        this.project = project;
+        this(project, mapper, null);
+    }
+
+    /**
+     * @param executor executor offering the messages. When null, messages are offered by the posting thread. An
+     *                 {@link IronMQEventConsumer} of these messages must use the host and credentials of the project:
+     *                 prefer {@link #IronMQEventBus(IronMQRestClient, JsonMapper, Executor)} to share its client.
+     */
+    public IronMQEventBus(IronProject project, JsonMapper mapper, Executor executor) {
+        this((queue, chunk) -> project.getQueue(queue).offer(chunk), mapper, executor);
+    }
+
+    /**
+     * Offers the messages through the IronMQ v3 REST API. Build the {@link IronMQEventConsumer} consuming these messages
+     * with the same client, so that both use the same host, API version and credentials.
+     *
+     * @param executor executor offering the messages. When null, messages are offered by the posting thread.
+     */
+    public IronMQEventBus(IronMQRestClient client, JsonMapper mapper, Executor executor) {
+        this((queue, chunk) -> {
+            try {
+                client.post(queue, chunk.stream().map(JsonObject::toString).collect(toList()));
+            } catch (IOException e) {
+                throw new IllegalStateException("Unable to offer " + chunk.size() + " messages to queue " + queue + ": " + e.getMessage(), e);
+            }
+        }, mapper, executor);
+    }
+
+    /**
+     * @param offerer offers a chunk of messages to the named queue
+     */
+    IronMQEventBus(BiConsumer<String, List<JsonObject>> offerer, JsonMapper mapper, Executor executor) {
+        this.offerer = offerer;
         this.mapper = mapper;
+        this.executor = executor;
+    }
+
+    /**
+     * @param codec codec encoding the events in the message bodies instead of the JSON mapper. Consumers must use
+     *              the same codec.
+     */
+    public void setCodec(EventCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @param maxChunkSize maximum number of messages offered in one request
+     */
+    public void setMaxChunkSize(int maxChunkSize) {
+        if (maxChunkSize < 1) throw new IllegalArgumentException("maxChunkSize: " + maxChunkSize);
+        this.maxChunkSize = maxChunkSize;
+    }
+
+    /**
+     * @param linger time to wait for more messages for the same queue before offering an incomplete chunk. 0 (the
+     *               default) offers the messages of each post call right away.
+     */
+    public synchronized void setLinger(long linger, TimeUnit unit) {
+        this.linger = unit.toMillis(linger);
+        if (this.linger > 0 && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, IronMQEventBus.class.getSimpleName() + "-Flusher");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Offers the messages waiting for their linger time to end
+     */
+    @PreDestroy
+    public void close() {
+        List<String> queues;
+        synchronized (this) {
+            queues = new ArrayList<>(pending.keySet());
+            if (flusher != null) {
+                flusher.shutdown();
+                flusher = null;
+                linger = 0;
+            }
+        }
+        queues.forEach(queue -> flush(queue, -1));
+    }
+
+    /**
+     * @return true for {@link Queue} event types, which are the only ones offered
+     */
+    @Override
+    public boolean accepts(Class<? extends Event> eventType) {
+        return EventMetadata.of(eventType).isQueue();
+    }
+
+    /**
+     * @return the {@link Queue} event types resolved so far, which include every type this bus was asked to
+     * {@link #accepts(Class) accept}
+     */
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        return EventMetadata.getQueueTypes();
     }
 
     @Override
     public void post(Stream<? extends Event> events) {
+        CompletableFuture<Void> future = postAsync(events);
+        if (executor == null && linger == 0) {
+            try {
+                future.join();
+            } catch (CompletionException e) {
+                // callers get the exception of the offer, as when offers were not asynchronous
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                }
+                if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw e;
+            }
+        } else {
+            future.whenComplete((v, err) -> {
+                if (err != null) {
+                    LOGGER.log(Level.SEVERE, "Unable to offer events: " + err.getMessage(), err);
+                }
+            });
+        }
+    }
+
+    /**
+     * @return a future completed when all the messages of the posted events have been offered
+     */
+    @Override
+    public CompletableFuture<Void> postAsync(Stream<? extends Event> events) {
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
         events
-            .filter(event -> event.isLocal() && event.getClass().isAnnotationPresent(Queue.class))
+            .filter(event -> event.isLocal() && EventMetadata.of(event.getClass()).isQueue())
             .map(Message::new)
             .collect(groupingBy(Message::getFromQueue))
             .forEach((queue, messages) -> {
-                Collection<JsonObject> objs = messages.stream().map(mapper::toJsonObject).collect(toList());
+                List<JsonObject> objs = messages.stream().map(this::toJsonObject).collect(toList());
                 if (LOGGER.isLoggable(Level.FINEST)) {
                     LOGGER.finest("Posting events " + messages.stream().map(Message::getEventType).collect(toList()) + " to queue " + queue + ": " + objs);
                 }
-                project.getQueue(queue).offer(objs);
+                futures.add(linger > 0 ? enqueue(queue, objs) : offer(queue, objs));
+            });
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()]));
+    }
+
+    private JsonObject toJsonObject(Message message) {
+        if (codec == null) {
+            return mapper.toJsonObject(message);
+        }
+        return Json.createObjectBuilder()
+            .add("fromQueue", message.getFromQueue())
+            .add("eventType", message.getEventType())
+            .add("codec", codec.getName())
+            .add("data", Base64.getEncoder().encodeToString(codec.encode(message.getEvent())))
+            .build();
+    }
+
+    private CompletableFuture<Void> offer(String queue, List<JsonObject> objs) {
+        List<CompletableFuture<Void>> chunks = new ArrayList<>((objs.size() + maxChunkSize - 1) / maxChunkSize);
+        for (int from = 0; from < objs.size(); from += maxChunkSize) {
+            List<JsonObject> chunk = objs.subList(from, Math.min(from + maxChunkSize, objs.size()));
+            if (executor == null) {
+                CompletableFuture<Void> future = new CompletableFuture<>();
+                try {
+                    offerer.accept(queue, chunk);
+                    future.complete(null);
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+                chunks.add(future);
+            } else {
+                chunks.add(CompletableFuture.runAsync(() -> offerer.accept(queue, chunk), executor));
+            }
+        }
+        return CompletableFuture.allOf(chunks.toArray(new CompletableFuture[chunks.size()]));
+    }
+
+    private CompletableFuture<Void> enqueue(String queue, List<JsonObject> objs) {
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        Pending full = null;
+        boolean closed = false;
+        synchronized (this) {
+            ScheduledExecutorService flusher = this.flusher;
+            if (flusher == null) {
+                // closed after the linger time was read
+                closed = true;
+            } else {
+                Pending batch = pending.computeIfAbsent(queue, q -> new Pending());
+                if (batch.messages.isEmpty()) {
+                    long generation = ++batch.generation;
+                    flusher.schedule(() -> flush(queue, generation), linger, TimeUnit.MILLISECONDS);
+                }
+                batch.messages.addAll(objs);
+                batch.waiters.add(done);
+                if (batch.messages.size() >= maxChunkSize) {
+                    full = batch.drain();
+                }
+            }
+        }
+        if (closed) {
+            return offer(queue, objs);
+        }
+        if (full != null) {
+            full.offer(queue);
+        }
+        return done;
+    }
+
+    private void flush(String queue, long generation) {
+        Pending batch;
+        synchronized (this) {
+            batch = pending.get(queue);
+            if (batch == null || batch.messages.isEmpty() || generation != -1 && generation != batch.generation) return;
+            batch = batch.drain();
+        }
+        batch.offer(queue);
+    }
+
+    private class Pending {
+
+        private List<JsonObject> messages = new ArrayList<>();
+        private List<CompletableFuture<Void>> waiters = new ArrayList<>();
+        private long generation;
+
+        Pending drain() {
+            Pending drained = new Pending();
+            drained.messages = messages;
+            drained.waiters = waiters;
+            messages = new ArrayList<>();
+            waiters = new ArrayList<>();
+            return drained;
+        }
+
+        void offer(String queue) {
+            IronMQEventBus.this.offer(queue, messages).whenComplete((v, err) -> {
+                for (CompletableFuture<Void> waiter : waiters) {
+                    if (err == null) {
+                        waiter.complete(null);
+                    } else {
+                        waiter.completeExceptionally(err);
+                    }
+                }
             });
+        }
     }
 
     public static class Message {
@@ -65,13 +324,9 @@ public class IronMQEventBus implements EventBus {
 
         public Message(Event event) {
             this.event = event;
-            Queue queue = event.getClass().getAnnotation(Queue.class);
-            String name = queue.name() == null ? "" : queue.name().trim();
-            if (name.length() == 0) {
-                name = "events." + event.getClass().getSimpleName();
-            }
-            this.fromQueue = name;
-            this.eventType = event.getClass().getSimpleName();
+            EventMetadata metadata = EventMetadata.of(event.getClass());
+            this.fromQueue = metadata.getQueueName();
+            this.eventType = metadata.getSimpleName();
         }
 
         public Event getEvent() {
@@ -0,0 +1,405 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.guestful.json.JsonMapper;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Consumes the {@link Queue} events offered by {@link IronMQEventBus} and posts them to a delegate event bus.
+ * <p>
+ * Each queue is long-polled by its own thread which reserves messages in batches. Messages are decoded and posted on a
+ * bounded worker pool, then deleted in batches once handled. Reservations of messages still being handled are
+ * extended, and the number of reserved but not yet handled messages is capped by the prefetch limit, shared evenly
+ * between the queues. A message whose handling fails is not deleted and is delivered again when its reservation
+ * expires, until it has been delivered {@link #setMaxDeliveries(int) maxDeliveries} times: it is then moved to the
+ * dead-letter queue if one is set, or dropped. Messages which cannot be decoded are moved or dropped right away.
+ * <p>
+ * The producing {@link IronMQEventBus} should be built from the same {@link IronMQRestClient}, so that both sides use
+ * the same host and credentials. All threads are daemon threads: a poller blocked in a long polling request does not
+ * prevent the JVM from exiting, and ends at the latest after the read timeout of the client.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class IronMQEventConsumer {
+
+    private static final Logger LOGGER = Logger.getLogger(IronMQEventConsumer.class.getName());
+    private static final int MAX_BATCH_SIZE = 100;
+
+    private final IronMQRestClient client;
+    private final JsonMapper mapper;
+    private final EventBus delegate;
+    private final Map<String, Map<String, Class<? extends Event>>> typesByQueue = new HashMap<>();
+    private final Map<String, Reserved> inFlight = new ConcurrentHashMap<>();
+    private final Map<String, java.util.Queue<JsonObject>> deletes = new ConcurrentHashMap<>();
+
+    private int reserveSize = MAX_BATCH_SIZE;
+    private int reservationTimeout = 60;
+    private int wait = 20;
+    private int workerCount = Runtime.getRuntime().availableProcessors();
+    private int prefetch = 2 * MAX_BATCH_SIZE;
+    private long deleteInterval = 500;
+    private int maxDeliveries = 5;
+    private String deadLetterQueue;
+    private EventCodec codec;
+    private BiConsumer<JsonObject, Throwable> errorHandler = (message, e) -> LOGGER.log(Level.SEVERE, "Unable to handle message " + message + ": " + e.getMessage(), e);
+
+    private volatile boolean running;
+    private final Map<String, Semaphore> permits = new HashMap<>();
+    private ExecutorService workers;
+    private ScheduledExecutorService maintenance;
+    private List<Thread> pollers = new ArrayList<>();
+
+    @SafeVarargs
+    public IronMQEventConsumer(IronMQRestClient client, JsonMapper mapper, EventBus delegate, Class<? extends Event>... eventTypes) {
+        this.client = client;
+        this.mapper = mapper;
+        this.delegate = delegate;
+        for (Class<? extends Event> eventType : eventTypes) {
+            EventMetadata metadata = EventMetadata.of(eventType);
+            if (!metadata.isQueue()) {
+                throw new IllegalArgumentException("Not a @Queue event: " + eventType.getName());
+            }
+            typesByQueue.computeIfAbsent(metadata.getQueueName(), q -> new HashMap<>()).put(metadata.getSimpleName(), eventType);
+        }
+    }
+
+    /**
+     * @param reserveSize maximum number of messages reserved by one request, up to 100
+     */
+    public void setReserveSize(int reserveSize) {
+        if (reserveSize < 1 || reserveSize > MAX_BATCH_SIZE) throw new IllegalArgumentException("reserveSize: " + reserveSize);
+        this.reserveSize = reserveSize;
+    }
+
+    /**
+     * @param reservationTimeout seconds a reserved message stays invisible to other consumers. Reservations of messages
+     *                           still being handled are extended by this amount at half of it.
+     */
+    public void setReservationTimeout(int reservationTimeout) {
+        if (reservationTimeout < 2) throw new IllegalArgumentException("reservationTimeout: " + reservationTimeout);
+        this.reservationTimeout = reservationTimeout;
+    }
+
+    /**
+     * @param wait seconds a reserve request waits for messages when the queue is empty (long polling)
+     */
+    public void setWait(int wait) {
+        this.wait = wait;
+    }
+
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) throw new IllegalArgumentException("workerCount: " + workerCount);
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * @param prefetch maximum number of reserved messages waiting to be handled or being handled, split evenly between
+     *                 the consumed queues so that a long polling queue never holds the share of the others
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch < 1) throw new IllegalArgumentException("prefetch: " + prefetch);
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @param deleteInterval maximum delay before a handled message is deleted
+     */
+    public void setDeleteInterval(long deleteInterval, TimeUnit unit) {
+        this.deleteInterval = Math.max(1, unit.toMillis(deleteInterval));
+    }
+
+    /**
+     * @param maxDeliveries number of times a message is delivered before being moved to the dead-letter queue or dropped
+     */
+    public void setMaxDeliveries(int maxDeliveries) {
+        if (maxDeliveries < 1) throw new IllegalArgumentException("maxDeliveries: " + maxDeliveries);
+        this.maxDeliveries = maxDeliveries;
+    }
+
+    /**
+     * @param deadLetterQueue queue receiving the body of the messages which cannot be decoded or failed
+     *                        {@link #setMaxDeliveries(int) maxDeliveries} times. When not set, they are deleted.
+     */
+    public void setDeadLetterQueue(String deadLetterQueue) {
+        this.deadLetterQueue = deadLetterQueue;
+    }
+
+    /**
+     * @param codec codec decoding the message bodies written by an {@link IronMQEventBus} using the same codec
+     */
+    public void setCodec(EventCodec codec) {
+        this.codec = codec;
+    }
+
+    public void setErrorHandler(BiConsumer<JsonObject, Throwable> errorHandler) {
+        this.errorHandler = errorHandler;
+    }
+
+    /**
+     * @return number of reserved messages not handled yet
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    @PostConstruct
+    public void init() {
+        if (running) return;
+        running = true;
+        int share = Math.max(1, prefetch / typesByQueue.size());
+        for (String queue : typesByQueue.keySet()) {
+            permits.put(queue, new Semaphore(share));
+        }
+        AtomicInteger workerIds = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, r -> daemon(r, IronMQEventConsumer.class.getSimpleName() + "-Worker-" + workerIds.incrementAndGet()));
+        maintenance = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, IronMQEventConsumer.class.getSimpleName() + "-Maintenance"));
+        maintenance.scheduleWithFixedDelay(this::deleteHandled, deleteInterval, deleteInterval, TimeUnit.MILLISECONDS);
+        long touchInterval = TimeUnit.SECONDS.toMillis(reservationTimeout) / 4;
+        maintenance.scheduleWithFixedDelay(this::extendReservations, touchInterval, touchInterval, TimeUnit.MILLISECONDS);
+        for (String queue : typesByQueue.keySet()) {
+            Thread poller = daemon(() -> poll(queue), IronMQEventConsumer.class.getSimpleName() + "-Poller-" + queue);
+            poller.start();
+            pollers.add(poller);
+        }
+    }
+
+    /**
+     * Stops reserving messages, waits for the reserved ones to be handled and deletes them
+     */
+    @PreDestroy
+    public void close() {
+        if (!running) return;
+        running = false;
+        pollers.forEach(Thread::interrupt);
+        pollers = new ArrayList<>();
+        workers.shutdown();
+        try {
+            workers.awaitTermination(reservationTimeout, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        maintenance.shutdownNow();
+        deleteHandled();
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private void poll(String queueName) {
+        Semaphore permits = this.permits.get(queueName);
+        while (running && !Thread.currentThread().isInterrupted()) {
+            int count = 0;
+            try {
+                permits.acquire();
+                count = 1;
+                while (count < reserveSize && permits.tryAcquire()) {
+                    count++;
+                }
+                List<JsonObject> messages = client.reserve(queueName, count, reservationTimeout, wait);
+                int reserved = messages.size();
+                permits.release(count - reserved);
+                count = 0;
+                if (LOGGER.isLoggable(Level.FINEST) && reserved > 0) {
+                    LOGGER.finest("Reserved " + reserved + " messages from queue " + queueName);
+                }
+                for (JsonObject m : messages) {
+                    Reserved message = new Reserved(queueName, m);
+                    inFlight.put(message.id, message);
+                    workers.execute(() -> handle(message));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                permits.release(count);
+                LOGGER.log(Level.SEVERE, "Reserve error on queue " + queueName + ": " + e.getMessage(), e);
+                try {
+                    Thread.sleep(1000);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    private void handle(Reserved message) {
+        boolean delete = false;
+        try {
+            Event event;
+            try {
+                event = decode(message);
+            } catch (RuntimeException e) {
+                errorHandler.accept(message.message, e);
+                delete = deadLetter(message);
+                return;
+            }
+            try {
+                delegate.post(event);
+                delete = true;
+            } catch (RuntimeException e) {
+                errorHandler.accept(message.message, e);
+                if (message.deliveries >= maxDeliveries) {
+                    delete = deadLetter(message);
+                }
+            }
+        } finally {
+            synchronized (message) {
+                inFlight.remove(message.id);
+                if (delete) {
+                    deletes.computeIfAbsent(message.queue, q -> new ConcurrentLinkedQueue<>()).add(message.message);
+                }
+            }
+            permits.get(message.queue).release();
+        }
+    }
+
+    /**
+     * @return true if the message can be deleted from its queue
+     */
+    private boolean deadLetter(Reserved message) {
+        if (deadLetterQueue == null) {
+            LOGGER.warning("Dropping message " + message.id + " from queue " + message.queue + " after " + message.deliveries + " deliveries");
+            return true;
+        }
+        try {
+            client.post(deadLetterQueue, Collections.singletonList(message.message.getString("body")));
+            if (LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.fine("Moved message " + message.id + " from queue " + message.queue + " to " + deadLetterQueue + " after " + message.deliveries + " deliveries");
+            }
+            return true;
+        } catch (Exception e) {
+            // kept in its queue: it will be delivered again when its reservation expires
+            LOGGER.log(Level.SEVERE, "Unable to move message " + message.id + " from queue " + message.queue + " to " + deadLetterQueue + ": " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    private Event decode(Reserved message) {
+        JsonObject body;
+        try (JsonReader reader = Json.createReader(new StringReader(message.message.getString("body")))) {
+            body = reader.readObject();
+        }
+        String eventType = body.getString("eventType");
+        Class<? extends Event> type = typesByQueue.get(message.queue).get(eventType);
+        if (type == null) {
+            throw new IllegalArgumentException("Unregistered event type " + eventType + " in queue " + message.queue);
+        }
+        String codecName = body.getString("codec", null);
+        Event event;
+        if (codecName == null) {
+            event = mapper.fromJson(body.getJsonObject("event"), type);
+        } else if (codec != null && codec.getName().equals(codecName)) {
+            event = codec.decode(Base64.getDecoder().decode(body.getString("data")), type);
+        } else {
+            throw new IllegalStateException("No codec to decode " + codecName + " message body");
+        }
+        event.setLocal(false);
+        if (LOGGER.isLoggable(Level.FINEST)) {
+            LOGGER.finest("Received event " + event.getId() + " " + eventType + " from queue " + message.queue);
+        }
+        return event;
+    }
+
+    private void deleteHandled() {
+        deletes.forEach((queueName, handled) -> {
+            List<JsonObject> batch = new ArrayList<>(MAX_BATCH_SIZE);
+            for (JsonObject message; (message = handled.poll()) != null; ) {
+                batch.add(message);
+                if (batch.size() == MAX_BATCH_SIZE) {
+                    delete(queueName, batch);
+                    batch = new ArrayList<>(MAX_BATCH_SIZE);
+                }
+            }
+            if (!batch.isEmpty()) {
+                delete(queueName, batch);
+            }
+        });
+    }
+
+    private void delete(String queueName, Collection<JsonObject> messages) {
+        try {
+            client.delete(queueName, messages);
+        } catch (Exception e) {
+            // messages will be delivered again when their reservation expires
+            LOGGER.log(Level.SEVERE, "Unable to delete " + messages.size() + " messages from queue " + queueName + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void extendReservations() {
+        long threshold = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(reservationTimeout) / 2;
+        for (Reserved message : inFlight.values()) {
+            if (message.reservedAt <= threshold) {
+                synchronized (message) {
+                    if (!inFlight.containsKey(message.id)) continue;
+                    try {
+                        message.extend(client.touch(message.queue, message.message, reservationTimeout));
+                    } catch (Exception e) {
+                        LOGGER.log(Level.WARNING, "Unable to extend reservation of message " + message.id + " from queue " + message.queue + ": " + e.getMessage(), e);
+                    }
+                }
+            }
+        }
+    }
+
+    private static class Reserved {
+
+        final String queue;
+        final String id;
+        final int deliveries;
+        JsonObject message;
+        long reservedAt = System.currentTimeMillis();
+
+        Reserved(String queue, JsonObject message) {
+            this.queue = queue;
+            this.id = message.getString("id");
+            this.deliveries = message.getInt("reserved_count", 1);
+            this.message = message;
+        }
+
+        void extend(JsonObject message) {
+            this.message = message;
+            reservedAt = System.currentTimeMillis();
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonReader;
+import javax.json.JsonWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Minimal client of the IronMQ v3 REST API covering what consuming a queue needs and the IronMQ client library does
+ * not provide: reserving messages with long polling, extending reservations and deleting reserved messages.
+ * <p>
+ * Messages are returned as the JSON objects of the API ({@code id}, {@code body}, {@code reservation_id} and
+ * {@code reserved_count}) and are given back as such to {@link #touch(String, JsonObject, int)} and
+ * {@link #delete(String, Collection)}.
+ * <p>
+ * There is no default host: IronMQ projects live on the host of their cluster. Producers and consumers must use the
+ * same host and credentials, which is guaranteed by building the producing {@link IronMQEventBus} from the client given
+ * to the {@link IronMQEventConsumer}. Requests time out after the {@link #setConnectTimeout(long, TimeUnit) connect}
+ * and {@link #setReadTimeout(long, TimeUnit) read} timeouts, so that closing a consumer never waits on a stuck
+ * connection for longer than that.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class IronMQRestClient {
+
+    private final String baseUrl;
+    private final String token;
+
+    private int connectTimeout = (int) TimeUnit.SECONDS.toMillis(10);
+    private int readTimeout = (int) TimeUnit.SECONDS.toMillis(60);
+
+    /**
+     * @param host host of the IronMQ v3 cluster of the project, e.g. mq-aws-us-east-1-1.iron.io, optionally prefixed
+     *             by its scheme
+     */
+    public IronMQRestClient(String host, String projectId, String token) {
+        this.baseUrl = (host.contains("://") ? host : "https://" + host) + "/3/projects/" + encode(projectId) + "/queues/";
+        this.token = token;
+    }
+
+    public void setConnectTimeout(long connectTimeout, TimeUnit unit) {
+        this.connectTimeout = (int) unit.toMillis(connectTimeout);
+    }
+
+    /**
+     * @param readTimeout maximum time to wait for a response, on top of the long polling wait of reserve requests
+     */
+    public void setReadTimeout(long readTimeout, TimeUnit unit) {
+        this.readTimeout = (int) unit.toMillis(readTimeout);
+    }
+
+    /**
+     * @param n       maximum number of messages to reserve, up to 100
+     * @param timeout seconds the reserved messages stay invisible to other consumers
+     * @param wait    seconds to wait for messages when the queue is empty
+     * @return the reserved messages, possibly none
+     */
+    public List<JsonObject> reserve(String queue, int n, int timeout, int wait) throws IOException {
+        JsonObject request = Json.createObjectBuilder()
+            .add("n", n)
+            .add("timeout", timeout)
+            .add("wait", wait)
+            .build();
+        JsonObject response = call("POST", queue + "/reservations", request, readTimeout + (int) TimeUnit.SECONDS.toMillis(wait));
+        JsonArray messages = response.getJsonArray("messages");
+        return messages == null ? new ArrayList<>(0) : new ArrayList<>(messages.getValuesAs(JsonObject.class));
+    }
+
+    /**
+     * @return the message with its new reservation id
+     */
+    public JsonObject touch(String queue, JsonObject message, int timeout) throws IOException {
+        JsonObject request = Json.createObjectBuilder()
+            .add("reservation_id", message.getString("reservation_id"))
+            .add("timeout", timeout)
+            .build();
+        JsonObject response = call("POST", queue + "/messages/" + encode(message.getString("id")) + "/touch", request, readTimeout);
+        return copy(message).add("reservation_id", response.getString("reservation_id")).build();
+    }
+
+    public void delete(String queue, Collection<JsonObject> messages) throws IOException {
+        if (messages.isEmpty()) return;
+        JsonArrayBuilder ids = Json.createArrayBuilder();
+        for (JsonObject message : messages) {
+            ids.add(Json.createObjectBuilder()
+                .add("id", message.getString("id"))
+                .add("reservation_id", message.getString("reservation_id")));
+        }
+        call("DELETE", queue + "/messages", Json.createObjectBuilder().add("ids", ids).build(), readTimeout);
+    }
+
+    public void post(String queue, Collection<String> bodies) throws IOException {
+        if (bodies.isEmpty()) return;
+        JsonArrayBuilder messages = Json.createArrayBuilder();
+        for (String body : bodies) {
+            messages.add(Json.createObjectBuilder().add("body", body));
+        }
+        call("POST", queue + "/messages", Json.createObjectBuilder().add("messages", messages).build(), readTimeout);
+    }
+
+    private JsonObject call(String method, String path, JsonObject request, int timeout) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+        try {
+            connection.setRequestMethod(method);
+            connection.setConnectTimeout(connectTimeout);
+            connection.setReadTimeout(timeout);
+            connection.setRequestProperty("Authorization", "OAuth " + token);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("Accept", "application/json");
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream(); JsonWriter writer = Json.createWriter(out)) {
+                writer.writeObject(request);
+            }
+            int status = connection.getResponseCode();
+            if (status / 100 != 2) {
+                throw new IOException("IronMQ " + method + " " + path + " failed with HTTP " + status + ": " + connection.getResponseMessage());
+            }
+            try (InputStream in = connection.getInputStream(); JsonReader reader = Json.createReader(in)) {
+                return reader.readObject();
+            }
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static JsonObjectBuilder copy(JsonObject message) {
+        JsonObjectBuilder builder = Json.createObjectBuilder();
+        message.forEach(builder::add);
+        return builder;
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8").replace("+", "%20");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
@@ -22,56 +22,104 @@ import com.guestful.simplepool.ObjectPool;
 import redis.clients.jedis.BinaryJedisPubSub;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
 import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
+ * Publishes {@link Cluster} events on a Redis channel and dispatches the events received from other nodes to a delegate.
+ * <p>
+ * Each event type is published on the channel named by its {@link Cluster#channel()}, and this bus only subscribes to
+ * the channels of the {@link Cluster} types its delegate {@link EventBus#getAcceptedTypes() accepts}, or to all of them
+ * when the delegate accepts any {@link Event}. Events from other nodes are therefore only received by handlers of
+ * {@link Cluster} types (sub-types included): a handler of an interface or of a super type without {@link Cluster} does
+ * not make this bus subscribe to the channels of its implementations.
+ * <p>
+ * Events are sent in batches: each Redis message starts with a format byte followed by length-prefixed frames, one per event.
+ * A frame starts with a header holding the emitting node id, the event id and the event type, so that receivers can drop
+ * their own echoes and the event types the delegate does not {@link EventBus#accepts(Class) accept} without decoding them.
+ * <p>
+ * The subscription thread only hands received messages to a bounded buffer. Worker threads decode and dispatch them, so a
+ * slow delegate does not hold the Redis subscription.
+ * <p>
+ * Events are serialized with Kryo, or with an {@link EventCodec} when one is set: the frame header then holds the id
+ * registered by the codec for the event type instead of its class name. All the nodes must use the same codec.
+ * Messages above the {@link Compression} threshold can be deflated, which is marked in the format byte.
+ * <p>
+ * All the events of a {@link #post(Stream)} call are packed in as few messages as the batch limits allow and sent through
+ * a pipeline. When a linger time is set, events posted within that window by any thread are packed together.
+ *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class JedisEventBus implements EventBus {
 
     private static final Logger LOGGER = Logger.getLogger(JedisEventBus.class.getName());
-    private static final byte[] DEFAULT_CHANNEL = "eventbus".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] ALL_CHANNELS = (EventMetadata.DEFAULT_CHANNEL + "*").getBytes(StandardCharsets.UTF_8);
+    private static final byte FORMAT = 2;
+    private static final byte CODEC_FORMAT = 3;
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final ThreadLocal<Output> FRAMES = ThreadLocal.withInitial(() -> new Output(1024, -1));
+    private static final ThreadLocal<Map<String, Output>> BATCHES = ThreadLocal.withInitial(HashMap::new);
+    private static final ThreadLocal<Input> INPUTS = ThreadLocal.withInitial(Input::new);
 
     private final JedisPool jedisPool;
     private final ObjectPool<Kryo> kryoPool;
     private final EventBus delegate;
-    private final ConcurrentMap<String, Object> sentEvents = new ConcurrentHashMap<>();
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, Optional<Class<? extends Event>>> eventTypes = new ConcurrentHashMap<>();
     private final BinaryJedisPubSub subscriber = new BinaryJedisPubSub() {
         @Override
         public void onMessage(byte[] channel, byte[] message) {
             try {
-                Event e = (Event) decode(message);
-                if (sentEvents.remove(e.getId()) == null) {
-                    if (LOGGER.isLoggable(Level.FINEST)) {
-                        LOGGER.finest("Received event " + e.getId() + " " + e.getClass().getSimpleName());
-                    }
-                    e.setLocal(false);
-                    delegate.post(e);
+                if (!received.put(message) && LOGGER.isLoggable(Level.FINE)) {
+                    LOGGER.fine("Receive buffer full: " + received.getDropped() + " messages dropped so far");
                 }
-            } catch (TimeoutException | InterruptedException e) {
+            } catch (InterruptedException e) {
                 throw new Error(e);
             }
         }
 
         @Override
         public void onPMessage(byte[] pattern, byte[] channel, byte[] message) {
-
+            onMessage(channel, message);
         }
 
         @Override
         public void onSubscribe(byte[] channel, int subscribedChannels) {
-
+            if (poller == null) {
+                // closed while subscribing
+                JedisEventBus.this.unsubscribe();
+            } else {
+                // accepted types may have changed while subscribing
+                refreshSubscriptions();
+            }
         }
 
         @Override
@@ -86,11 +134,29 @@ public class JedisEventBus implements EventBus {
 
         @Override
         public void onPSubscribe(byte[] pattern, int subscribedChannels) {
-
+            if (poller == null) {
+                JedisEventBus.this.unsubscribe();
+            } else {
+                refreshSubscriptions();
+            }
         }
     };
 
-    private Thread poller;
+    private volatile Thread poller;
+    private final Runnable routesListener = this::refreshSubscriptions;
+    private Thread[] workers = new Thread[0];
+    private RingBuffer<byte[]> received;
+    private int receiveBufferSize = 1024;
+    private OverflowPolicy overflowPolicy = OverflowPolicy.DROP_OLDEST;
+    private int workerCount = 1;
+    private volatile ScheduledExecutorService flusher;
+    private final Map<String, Batch> pending = new HashMap<>();
+    private volatile Set<String> subscriptions;
+    private int maxBatchSize = 100;
+    private int maxBatchBytes = 512 * 1024;
+    private long linger;
+    private EventCodec codec;
+    private Compression compression;
 
     public JedisEventBus(EventBus delegate, JedisPool jedisPool, ObjectPool<Kryo> kryoPool) {
         this.delegate = delegate;
@@ -98,17 +164,133 @@ public class JedisEventBus implements EventBus {
         this.kryoPool = kryoPool;
     }
 
+    public JedisEventBus(EventBus delegate, JedisPool jedisPool, EventCodec codec) {
+        this(delegate, jedisPool, (ObjectPool<Kryo>) null);
+        this.codec = codec;
+    }
+
+    /**
+     * @param codec codec serializing the published events. By default, events are serialized with Kryo. Messages of
+     *              both formats are decoded as long as the Kryo pool or the codec they need is available.
+     */
+    public void setCodec(EventCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @return the id written in the header of the events published by this bus, and set as {@link Event#getEmiter()
+     * emiter} on these events by the receiving nodes
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @param compression compression of the messages above its threshold. Compressed messages are always decoded.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param maxBatchSize maximum number of events packed in one Redis message
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1) throw new IllegalArgumentException("maxBatchSize: " + maxBatchSize);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * @param maxBatchBytes maximum size of a Redis message. An event bigger than this limit is sent alone.
+     */
+    public void setMaxBatchBytes(int maxBatchBytes) {
+        if (maxBatchBytes < 1) throw new IllegalArgumentException("maxBatchBytes: " + maxBatchBytes);
+        this.maxBatchBytes = maxBatchBytes;
+    }
+
+    /**
+     * @param linger time in milliseconds to wait for more events before sending an incomplete batch. 0 (the default)
+     *               sends the events of each post call right away. Must be set before {@link #init()}.
+     */
+    public void setLinger(long linger, TimeUnit unit) {
+        this.linger = unit.toMillis(linger);
+    }
+
+    /**
+     * Sets the buffer between the Redis subscription and the workers decoding and dispatching the received messages.
+     * Must be called before {@link #init()}. By default, 1024 messages are buffered and the oldest one is dropped when
+     * the buffer is full, so that a slow delegate never stalls the subscription. {@link OverflowPolicy#BLOCK} waits
+     * instead, at the risk of Redis closing the connection of a subscriber too slow to read its messages.
+     *
+     * @param receiveBufferSize maximum number of received messages waiting for a worker
+     * @param overflowPolicy    what to do with a received message when the buffer is full
+     */
+    public void setReceiveBuffer(int receiveBufferSize, OverflowPolicy overflowPolicy) {
+        if (receiveBufferSize < 1) throw new IllegalArgumentException("receiveBufferSize: " + receiveBufferSize);
+        this.receiveBufferSize = receiveBufferSize;
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @param workerCount number of threads decoding and dispatching received messages. Received events are only
+     *                    dispatched in order with a single worker (the default). Must be called before {@link #init()}.
+     */
+    public void setWorkerCount(int workerCount) {
+        if (workerCount < 1) throw new IllegalArgumentException("workerCount: " + workerCount);
+        this.workerCount = workerCount;
+    }
+
+    /**
+     * @return number of received messages dropped because the receive buffer was full
+     */
+    public long getDroppedMessages() {
+        return received == null ? 0 : received.getDropped();
+    }
+
     @PostConstruct
     public void init() {
-        if (!subscriber.isSubscribed()) {
+        if (poller == null) {
+            EventMetadata.addRoutesListener(routesListener);
+            received = new RingBuffer<>(receiveBufferSize, overflowPolicy);
+            workers = new Thread[workerCount];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = new Thread(JedisEventBus.class.getSimpleName() + "-Worker-" + (i + 1)) {
+                    @Override
+                    public void run() {
+                        RingBuffer<byte[]> buffer = received;
+                        while (!Thread.currentThread().isInterrupted()) {
+                            try {
+                                receive(buffer.take());
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            } catch (Exception e) {
+                                LOGGER.log(Level.SEVERE, "Receive error: " + e.getMessage(), e);
+                            }
+                        }
+                    }
+                };
+                workers[i].start();
+            }
             poller = new Thread(JedisEventBus.class.getSimpleName() + "-Poller") {
                 @Override
                 public void run() {
-                    while (!Thread.currentThread().isInterrupted() && poller != null) {
+                    while (!Thread.currentThread().isInterrupted() && poller == this) {
                         Jedis jedis = null;
                         try {
                             jedis = jedisPool.getResource();
-                            jedis.subscribe(subscriber, DEFAULT_CHANNEL);
+                            Set<String> channels = subscriptions = channels();
+                            if (LOGGER.isLoggable(Level.FINE)) {
+                                LOGGER.fine("Subscribing to " + (channels.isEmpty() ? "all channels" : channels));
+                            }
+                            if (channels.isEmpty()) {
+                                jedis.psubscribe(subscriber, ALL_CHANNELS);
+                            } else {
+                                jedis.subscribe(subscriber, channels.stream().map(c -> c.getBytes(StandardCharsets.UTF_8)).toArray(byte[][]::new));
+                            }
                         } catch (Exception e) {
                             Throwable t = e;
                             if (e instanceof Error) {
@@ -131,45 +313,303 @@ public class JedisEventBus implements EventBus {
             };
             poller.start();
         }
+        if (linger > 0 && flusher == null) {
+            flusher = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, JedisEventBus.class.getSimpleName() + "-Flusher"));
+        }
     }
 
     @PreDestroy
     public void close() {
-        if (subscriber.isSubscribed()) {
+        EventMetadata.removeRoutesListener(routesListener);
+        Thread poller = this.poller;
+        if (poller != null) {
+            // stops the poller even when it is reconnecting and not subscribed
+            this.poller = null;
             poller.interrupt();
-            poller = null;
-            subscriber.unsubscribe();
+            if (subscriber.isSubscribed()) {
+                unsubscribe();
+            }
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        workers = new Thread[0];
+        ScheduledExecutorService flusher;
+        synchronized (this) {
+            // posts appending after this point send their events right away
+            flusher = this.flusher;
+            this.flusher = null;
         }
+        if (flusher != null) {
+            flusher.shutdown();
+            flushAll();
+        }
+    }
+
+    /**
+     * @return true for {@link Cluster} event types, which are the only ones published
+     */
+    @Override
+    public boolean accepts(Class<? extends Event> eventType) {
+        return EventMetadata.of(eventType).isCluster();
+    }
+
+    /**
+     * @return the {@link Cluster} event types resolved so far, which include every type this bus was asked to
+     * {@link #accepts(Class) accept}
+     */
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        return EventMetadata.getClusterTypes();
     }
 
     @Override
     public void post(Stream<? extends Event> events) {
-        final Jedis jedis = jedisPool.getResource();
+        send(events);
+    }
+
+    /**
+     * @return a stage completed when the events are published. With a linger time, this happens when their batches
+     * are sent.
+     */
+    @Override
+    public CompletionStage<Void> postAsync(Stream<? extends Event> events) {
+        Set<CompletableFuture<Void>> pending;
         try {
-            events
-                .filter(event -> event.isLocal() && event.getClass().isAnnotationPresent(Cluster.class))
-                .forEach(event -> {
-                    if (LOGGER.isLoggable(Level.FINEST)) {
-                        LOGGER.finest("Posting event " + event.getId() + " " + event.getClass().getSimpleName());
-                    }
-                    try {
-                        jedis.publish(DEFAULT_CHANNEL, encode(event));
-                    } catch (TimeoutException | InterruptedException e) {
-                        throw new RuntimeException("Unable to send event: " + e.getMessage(), e);
+            pending = send(events);
+        } catch (RuntimeException e) {
+            CompletableFuture<Void> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+        return CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()]));
+    }
+
+    /**
+     * @return the futures of the lingering batches the events were added to
+     */
+    private Set<CompletableFuture<Void>> send(Stream<? extends Event> events) {
+        List<Message> messages = new ArrayList<>();
+        Set<CompletableFuture<Void>> lingering = new HashSet<>();
+        Map<String, Batch> batches = flusher == null ? new HashMap<>() : null;
+        events
+            .filter(event -> event.isLocal() && EventMetadata.of(event.getClass()).isCluster())
+            .forEach(event -> {
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("Posting event " + event.getId() + " " + event.getClass().getSimpleName());
+                }
+                String channel = EventMetadata.of(event.getClass()).getChannel();
+                Output frame;
+                try {
+                    frame = encode(event);
+                } catch (TimeoutException | InterruptedException | IOException e) {
+                    throw new RuntimeException("Unable to send event: " + e.getMessage(), e);
+                }
+                if (batches == null) {
+                    lingering.add(append(channel, frame, messages));
+                } else {
+                    Batch batch = batches.computeIfAbsent(channel, c -> new Batch(c, BATCHES.get().computeIfAbsent(c, k -> new Output(4096, -1))));
+                    if (!batch.accepts(frame)) {
+                        messages.add(batch.drain());
                     }
-                    sentEvents.put(event.getId(), Void.class);
-                });
+                    batch.add(frame);
+                }
+                if (frame.getBuffer().length > MAX_RETAINED_BUFFER) {
+                    FRAMES.remove();
+                }
+            });
+        if (batches != null) {
+            for (Batch batch : batches.values()) {
+                if (!batch.isEmpty()) {
+                    messages.add(batch.drain());
+                }
+            }
+            // buffers grown by big batches are not kept by every posting thread
+            BATCHES.get().values().removeIf(output -> output.getBuffer().length > MAX_RETAINED_BUFFER);
+        }
+        publish(messages);
+        return lingering;
+    }
+
+    /**
+     * Recomputes the channels to listen to from the event types accepted by the delegate, and subscribes again if they
+     * changed. Called each time {@link EventMetadata#invalidateRoutes() routes are invalidated}, which the buses of this
+     * module do when handlers are registered; delegates that do not must call it when their accepted types change.
+     */
+    public void refreshSubscriptions() {
+        Set<String> channels = channels();
+        Set<String> current = subscriptions;
+        if (current != null && !current.equals(channels) && subscriber.isSubscribed()) {
+            unsubscribe();
+        }
+    }
+
+    private void unsubscribe() {
+        if (subscriptions != null && subscriptions.isEmpty()) {
+            subscriber.punsubscribe();
+        } else {
+            subscriber.unsubscribe();
+        }
+    }
+
+    /**
+     * @return the channels of the {@link Cluster} types accepted by the delegate, or an empty set when it accepts all the
+     * events and all the channels must be listened to. Called by the poller, and by tests.
+     */
+    Set<String> channels() {
+        Set<String> channels = new TreeSet<>();
+        for (Class<?> type : delegate.getAcceptedTypes()) {
+            if (type.isAssignableFrom(Event.class)) {
+                return Collections.emptySet();
+            }
+            EventMetadata metadata = EventMetadata.of(type);
+            if (metadata.isCluster()) {
+                channels.add(metadata.getChannel());
+            }
+        }
+        if (channels.isEmpty()) {
+            // keeps the connection with a channel of the cluster until the delegate accepts some cluster events
+            channels.add(EventMetadata.DEFAULT_CHANNEL);
+        }
+        return channels;
+    }
+
+    private CompletableFuture<Void> append(String channel, Output frame, List<Message> ready) {
+        synchronized (this) {
+            Batch batch = pending.computeIfAbsent(channel, c -> new Batch(c, new Output(4096, -1)));
+            if (!batch.accepts(frame)) {
+                ready.add(batch.drain());
+            }
+            if (batch.isEmpty()) {
+                if (flusher == null) {
+                    // closed while posting: sent with the other messages of the post
+                    batch.add(frame);
+                    CompletableFuture<Void> sent = batch.sent;
+                    ready.add(batch.drain());
+                    return sent;
+                }
+                long generation = ++batch.generation;
+                flusher.schedule(() -> flush(channel, generation), linger, TimeUnit.MILLISECONDS);
+            }
+            batch.add(frame);
+            return batch.sent;
+        }
+    }
+
+    private void flush(String channel, long generation) {
+        Message message;
+        synchronized (this) {
+            Batch batch = pending.get(channel);
+            if (batch == null || batch.isEmpty() || generation != batch.generation) return;
+            message = batch.drain();
+        }
+        try {
+            publish(Collections.singletonList(message));
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Unable to send events: " + e.getMessage(), e);
+        }
+    }
+
+    private void flushAll() {
+        List<Message> messages = new ArrayList<>();
+        synchronized (this) {
+            for (Batch batch : pending.values()) {
+                if (!batch.isEmpty()) {
+                    messages.add(batch.drain());
+                }
+            }
+        }
+        try {
+            publish(messages);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.SEVERE, "Unable to send events: " + e.getMessage(), e);
+        }
+    }
+
+    private void publish(List<Message> messages) {
+        if (messages.isEmpty()) return;
+        try {
+            write(messages);
+        } catch (RuntimeException e) {
+            messages.forEach(message -> message.sent.completeExceptionally(e));
+            throw e;
+        }
+        messages.forEach(message -> message.sent.complete(null));
+    }
+
+    private void write(List<Message> messages) {
+        if (compression != null) {
+            for (Message message : messages) {
+                message.payload = compression.compress(message.payload);
+            }
+        }
+        Jedis jedis = jedisPool.getResource();
+        try {
+            if (messages.size() == 1) {
+                jedis.publish(messages.get(0).channel, messages.get(0).payload);
+            } else {
+                Pipeline pipeline = jedis.pipelined();
+                for (Message message : messages) {
+                    pipeline.publish(message.channel, message.payload);
+                }
+                pipeline.sync();
+            }
+        } catch (JedisConnectionException e) {
+            jedisPool.returnBrokenResource(jedis);
+            jedis = null;
+            throw e;
         } finally {
             jedisPool.returnResource(jedis);
         }
     }
 
-    private Object decode(byte[] bytes) throws TimeoutException, InterruptedException {
-        if (bytes == null) return null;
+    /**
+     * Decodes a received message and dispatches its events. Called by the workers, and by tests.
+     */
+    void receive(byte[] message) throws TimeoutException, InterruptedException, IOException {
+        if (Compression.isCompressed(message)) {
+            message = Compression.decompress(message);
+        }
+        boolean withCodec = message[0] == CODEC_FORMAT;
+        if (message[0] != FORMAT && !withCodec || withCodec && codec == null || !withCodec && kryoPool == null) {
+            LOGGER.warning("Dropping message of unsupported format " + message[0]);
+            return;
+        }
+        for (int pos = 1; pos < message.length; ) {
+            int length = readInt(message, pos);
+            pos += 4;
+            Input input = INPUTS.get();
+            input.setBuffer(message, pos, length);
+            pos += length;
+            String emitter = input.readString();
+            String id = input.readString();
+            int typeId = withCodec ? TypeHeader.readTypeId(input) : 0;
+            String type = typeId == 0 ? (withCodec ? TypeHeader.readName(input) : input.readString()) : null;
+            if (nodeId.equals(emitter)) {
+                continue;
+            }
+            Class<? extends Event> eventType = typeId == 0 ? resolve(type) : codec.getType(typeId);
+            if (eventType == null || !delegate.accepts(eventType)) {
+                if (LOGGER.isLoggable(Level.FINEST)) {
+                    LOGGER.finest("Skipping event " + id + " " + (typeId == 0 ? type : "#" + typeId));
+                }
+                continue;
+            }
+            Event e = withCodec ? codec.decode(Arrays.copyOfRange(message, input.position(), pos), eventType) : decode(input);
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("Received event " + e.getId() + " " + e.getClass().getSimpleName());
+            }
+            e.setEmiter(emitter);
+            e.setLocal(false);
+            delegate.post(e);
+        }
+    }
+
+    private Event decode(Input input) throws TimeoutException, InterruptedException {
         Kryo kryo = null;
         try {
             kryo = kryoPool.borrow();
-            return kryo.readClassAndObject(new Input(bytes));
+            return (Event) kryo.readClassAndObject(input);
         } finally {
             if (kryo != null) {
                 kryoPool.yield(kryo);
@@ -177,15 +617,27 @@ public class JedisEventBus implements EventBus {
         }
     }
 
-    private byte[] encode(Object value) throws TimeoutException, InterruptedException {
+    /**
+     * Serializes the frame header and the event in a buffer owned by the calling thread, which is only grown when an
+     * event does not fit, and discarded after use once grown beyond {@value #MAX_RETAINED_BUFFER} bytes. The returned
+     * output is only valid until the next call from the same thread.
+     */
+    private Output encode(Event event) throws TimeoutException, InterruptedException, IOException {
+        Output output = FRAMES.get();
+        output.clear();
+        output.writeString(nodeId);
+        output.writeString(event.getId());
+        if (codec != null) {
+            TypeHeader.write(output, codec, event.getClass());
+            output.writeBytes(codec.encode(event));
+            return output;
+        }
+        output.writeString(EventMetadata.of(event.getClass()).getTypeId());
         Kryo kryo = null;
         try {
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            Output output = new Output(baos);
             kryo = kryoPool.borrow();
-            kryo.writeClassAndObject(output, value);
-            output.close();
-            return baos.toByteArray();
+            kryo.writeClassAndObject(output, event);
+            return output;
         } finally {
             if (kryo != null) {
                 kryoPool.yield(kryo);
@@ -193,6 +645,86 @@ public class JedisEventBus implements EventBus {
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private Class<? extends Event> resolve(String type) {
+        return eventTypes.computeIfAbsent(type, name -> {
+            try {
+                Class<?> c = Thread.currentThread().getContextClassLoader().loadClass(name);
+                if (Event.class.isAssignableFrom(c)) {
+                    return Optional.of((Class<? extends Event>) c);
+                }
+                LOGGER.warning("Not an event: " + name);
+            } catch (ClassNotFoundException e) {
+                LOGGER.warning("Unknown event type: " + name);
+            }
+            return Optional.empty();
+        }).orElse(null);
+    }
+
+    private static int readInt(byte[] bytes, int pos) {
+        return (bytes[pos] & 0xFF) << 24 | (bytes[pos + 1] & 0xFF) << 16 | (bytes[pos + 2] & 0xFF) << 8 | bytes[pos + 3] & 0xFF;
+    }
+
+    private byte format() {
+        return codec == null ? FORMAT : CODEC_FORMAT;
+    }
+
+    /**
+     * Packs frames in a reusable buffer. Each frame is copied once into the batch, and {@link #drain()} copies the batch
+     * once more into a byte array of the exact message size, as required by Jedis.
+     */
+    private class Batch {
+
+        private final byte[] channel;
+        private final Output output;
+        private int count;
+        private long generation;
+        private CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Batch(String channel, Output output) {
+            this.channel = channel.getBytes(StandardCharsets.UTF_8);
+            this.output = output;
+            output.clear();
+            output.writeByte(format());
+        }
+
+        boolean isEmpty() {
+            return count == 0;
+        }
+
+        boolean accepts(Output frame) {
+            return isEmpty() || count < maxBatchSize && output.position() + 4 + frame.position() <= maxBatchBytes;
+        }
+
+        void add(Output frame) {
+            output.writeInt(frame.position());
+            output.writeBytes(frame.getBuffer(), 0, frame.position());
+            count++;
+        }
+
+        Message drain() {
+            Message message = new Message(channel, output.toBytes(), sent);
+            sent = new CompletableFuture<>();
+            output.clear();
+            output.writeByte(format());
+            count = 0;
+            return message;
+        }
+    }
+
+    private static class Message {
+
+        private final byte[] channel;
+        private final CompletableFuture<Void> sent;
+        private byte[] payload;
+
+        Message(byte[] channel, byte[] payload, CompletableFuture<Void> sent) {
+            this.channel = channel;
+            this.payload = payload;
+            this.sent = sent;
+        }
+    }
+
     private static class Error extends RuntimeException {
         private Error(Throwable cause) {
             super(cause);
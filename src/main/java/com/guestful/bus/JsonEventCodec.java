@@ -0,0 +1,50 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.guestful.json.JsonMapper;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes events as UTF-8 JSON with a {@link JsonMapper}
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class JsonEventCodec implements EventCodec {
+
+    private final JsonMapper jsonMapper;
+
+    public JsonEventCodec(JsonMapper jsonMapper) {
+        this.jsonMapper = jsonMapper;
+    }
+
+    @Override
+    public String getName() {
+        return "json";
+    }
+
+    @Override
+    public byte[] encode(Event event) {
+        return jsonMapper.toJson(event).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+        return jsonMapper.fromJson(new String(bytes, StandardCharsets.UTF_8), eventType);
+    }
+
+}
@@ -0,0 +1,163 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Registration;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.guestful.simplepool.ObjectPool;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Encodes events with pooled Kryo instances. The event class is not written: it must be given when decoding.
+ * <p>
+ * Event types can be {@link #register(Class, int) registered} with stable ids so that transports identify them with a
+ * small integer instead of their class name. All the nodes must register the same types with the same ids.
+ * <p>
+ * The ids are also registered in the Kryo instances, the first time each one is borrowed after a registration, so that
+ * Kryo writes the same small integer for the registered types nested in events. They must not clash with the ids the
+ * instances already use, like the ones Kryo reserves for primitive types and {@link String} (0 to 9).
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class KryoEventCodec implements EventCodec {
+
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<Output> OUTPUTS = ThreadLocal.withInitial(() -> new Output(1024, -1));
+    private static final ThreadLocal<Input> INPUTS = ThreadLocal.withInitial(Input::new);
+
+    private final ObjectPool<Kryo> kryoPool;
+    private final Map<Class<?>, Integer> ids = new ConcurrentHashMap<>();
+    private final Map<Integer, Class<? extends Event>> types = new ConcurrentHashMap<>();
+    private final List<Class<? extends Event>> registered = new CopyOnWriteArrayList<>();
+
+    public KryoEventCodec(ObjectPool<Kryo> kryoPool) {
+        this.kryoPool = kryoPool;
+    }
+
+    /**
+     * @param id positive id, stable across releases and the same on all the nodes
+     * @throws IllegalArgumentException if the type or the id is already registered with another id or type, or if
+     *                                  the id is used by the Kryo instances for another type
+     */
+    public synchronized KryoEventCodec register(Class<? extends Event> eventType, int id) {
+        if (id <= 0) throw new IllegalArgumentException("id: " + id);
+        Class<? extends Event> previousType = types.get(id);
+        if (previousType != null && previousType != eventType) {
+            throw new IllegalArgumentException("Id " + id + " already registered for " + previousType.getName());
+        }
+        Integer previousId = ids.get(eventType);
+        if (previousId != null && previousId != id) {
+            throw new IllegalArgumentException(eventType.getName() + " already registered with id " + previousId);
+        }
+        if (previousType == null) {
+            Kryo kryo = borrow();
+            try {
+                Registration registration = kryo.getRegistration(id);
+                if (registration != null && registration.getType() != eventType) {
+                    throw new IllegalArgumentException("Id " + id + " already used by Kryo for " + registration.getType().getName());
+                }
+                types.put(id, eventType);
+                ids.put(eventType, id);
+                registered.add(eventType);
+            } finally {
+                kryoPool.yield(kryo);
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public int getTypeId(Class<? extends Event> eventType) {
+        Integer id = ids.get(eventType);
+        return id == null ? 0 : id;
+    }
+
+    @Override
+    public Class<? extends Event> getType(int typeId) {
+        return types.get(typeId);
+    }
+
+    @Override
+    public String getName() {
+        return "kryo";
+    }
+
+    @Override
+    public byte[] encode(Event event) {
+        Output output = OUTPUTS.get();
+        output.clear();
+        Kryo kryo = borrow();
+        try {
+            kryo.writeObject(output, event);
+            return output.toBytes();
+        } finally {
+            kryoPool.yield(kryo);
+            // a buffer grown by a big event is not kept by the thread
+            if (output.getBuffer().length > MAX_RETAINED_BUFFER) {
+                OUTPUTS.remove();
+            }
+        }
+    }
+
+    @Override
+    public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+        Input input = INPUTS.get();
+        input.setBuffer(bytes);
+        Kryo kryo = borrow();
+        try {
+            return kryo.readObject(input, eventType);
+        } finally {
+            kryoPool.yield(kryo);
+            input.setBuffer(EMPTY);
+        }
+    }
+
+    /**
+     * @return a Kryo instance knowing all the registered types
+     */
+    @SuppressWarnings("unchecked")
+    private Kryo borrow() {
+        Kryo kryo;
+        try {
+            kryo = kryoPool.borrow();
+        } catch (TimeoutException | InterruptedException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new IllegalStateException("Unable to get a Kryo instance: " + e.getMessage(), e);
+        }
+        // the number of registered types already known by this instance
+        Integer known = (Integer) kryo.getContext().get(this);
+        int count = registered.size();
+        if (known == null || known < count) {
+            for (int i = known == null ? 0 : known; i < count; i++) {
+                Class<? extends Event> eventType = registered.get(i);
+                kryo.register(eventType, ids.get(eventType));
+            }
+            kryo.getContext().put(this, count);
+        }
+        return kryo;
+    }
+
+}
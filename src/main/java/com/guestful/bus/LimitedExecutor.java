@@ -0,0 +1,83 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs tasks on an executor, at most a given number at the same time. Extra tasks wait in a queue without holding a
+ * thread, and are run in submission order when a running one completes.
+ * <p>
+ * Stacked on a {@link BoundedExecutor}, the waiting tasks count against its capacity until they run.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class LimitedExecutor implements Executor {
+
+    private final Executor executor;
+    private final BoundedExecutor bounded;
+    private final int maxConcurrency;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger running = new AtomicInteger();
+
+    LimitedExecutor(Executor executor, int maxConcurrency) {
+        if (maxConcurrency < 1) throw new IllegalArgumentException("maxConcurrency: " + maxConcurrency);
+        this.executor = executor;
+        this.bounded = executor instanceof BoundedExecutor ? (BoundedExecutor) executor : null;
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        if (bounded != null) {
+            bounded.hold();
+        }
+        tasks.add(task);
+        schedule();
+    }
+
+    private void schedule() {
+        for (int n; !tasks.isEmpty() && (n = running.get()) < maxConcurrency; ) {
+            if (running.compareAndSet(n, n + 1)) {
+                try {
+                    BoundedExecutor.executeAccepted(executor, this::drain);
+                } catch (RuntimeException e) {
+                    running.decrementAndGet();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    private void drain() {
+        try {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                if (bounded != null) {
+                    bounded.release();
+                }
+                task.run();
+            }
+        } finally {
+            running.decrementAndGet();
+            schedule();
+        }
+    }
+
+}
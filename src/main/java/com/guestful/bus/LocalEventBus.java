@@ -0,0 +1,445 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import javax.annotation.PreDestroy;
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+import java.lang.reflect.WildcardType;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * In-process event bus dispatching events to the {@link Subscribe} methods of registered handlers, with the same
+ * register / unregister API as {@link GuavaEventBus}. Methods annotated with Guava's {@code @Subscribe} are also found, so
+ * that existing handlers can be moved as they are: as with Guava, they are called one event at a time unless they are
+ * also annotated with Guava's {@code @AllowConcurrentEvents}. Methods annotated with this module's {@link Subscribe} are
+ * called concurrently, up to their {@link Subscribe#maxConcurrency()}, and must be thread-safe.
+ * <p>
+ * Registrations are copy-on-write: the handlers of each concrete event class, found through all its super types, are
+ * resolved once and cached until the next registration change, so posting takes no lock. Handlers are called through
+ * method handles instead of reflection.
+ * <p>
+ * When created with stripes, {@link Partitioned} events of the same key are handled in order, by all their handlers one
+ * after another, while events of different keys are handled in parallel.
+ * <p>
+ * Methods also annotated with {@link Batch} receive lists of events, collected from all posting threads up to a maximum
+ * size and linger time. {@link #close()} hands the incomplete batches to their handlers: the events posted afterwards are
+ * handed right away, in batches of one.
+ * <p>
+ * Blocking handlers are best run on {@link EventExecutors#newVirtualThreadExecutor() virtual threads}, with
+ * {@link Subscribe#maxConcurrency()} bounding the calls of the methods using limited resources. With a
+ * {@link BoundedExecutor}, the events waiting for their handlers are bounded and shed according to their priority: each
+ * event is queued as one task calling its handlers one after another, so that it is dropped or shed for all of them or
+ * none. Handlers limited by {@link Subscribe#maxConcurrency()}, or serialized, are still called through their own limit,
+ * and the events waiting for them keep counting against the capacity of the bounded executor.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class LocalEventBus implements EventBus {
+
+    private static final Logger LOGGER = Logger.getLogger(LocalEventBus.class.getName());
+    private static final String GUAVA_SUBSCRIBE = "com.google.common.eventbus.Subscribe";
+    private static final String GUAVA_ALLOW_CONCURRENT_EVENTS = "com.google.common.eventbus.AllowConcurrentEvents";
+    private static final MethodType HANDLER_TYPE = MethodType.methodType(void.class, Object.class);
+
+    private final Executor executor;
+    private final BiConsumer<Event, Throwable> exceptionHandler;
+    private final StripedExecutor stripedExecutor;
+    private final Map<Object, List<Handler>> registrations = new IdentityHashMap<>();
+    private volatile Map<Class<?>, List<Handler>> handlersByType = Collections.emptyMap();
+    private volatile ConcurrentMap<Class<?>, Handler[]> handlersByEventClass = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService timer;
+
+    public LocalEventBus(Executor executor) {
+        this(executor, (event, err) -> LOGGER.log(Level.SEVERE, "Error dispatching event: " + err.getMessage() + ". Event: " + event, err));
+    }
+
+    public LocalEventBus(Executor executor, BiConsumer<Event, Throwable> exceptionHandler) {
+        this(executor, exceptionHandler, 0);
+    }
+
+    /**
+     * @param stripes number of stripes on which {@link Partitioned} events are handled in order of their partition key.
+     *                With 0 stripes, all events are handled concurrently.
+     */
+    public LocalEventBus(Executor executor, BiConsumer<Event, Throwable> exceptionHandler, int stripes) {
+        this.executor = executor;
+        this.exceptionHandler = exceptionHandler;
+        this.stripedExecutor = stripes > 0 ? new StripedExecutor(executor, stripes) : null;
+    }
+
+    @Override
+    public void post(Stream<? extends Event> eventStream) {
+        eventStream.forEach(event -> {
+            Handler[] handlers = handlers(event.getClass());
+            if (handlers.length == 0) return;
+            Object key = stripedExecutor != null && event instanceof Partitioned ? ((Partitioned) event).getPartitionKey() : null;
+            if (key != null) {
+                stripedExecutor.execute(key, () -> {
+                    for (Handler handler : handlers) {
+                        handler.handle(event);
+                    }
+                });
+            } else if (executor instanceof BoundedExecutor) {
+                ((BoundedExecutor) executor).execute(event, () -> {
+                    for (Handler handler : handlers) {
+                        handler.process(event);
+                    }
+                });
+            } else {
+                for (Handler handler : handlers) {
+                    handler.dispatch(event);
+                }
+            }
+        });
+    }
+
+    @Override
+    public boolean accepts(Class<? extends Event> eventType) {
+        return handlers(eventType).length > 0;
+    }
+
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        return handlersByType.keySet();
+    }
+
+    public void register(Object handler) {
+        List<Handler> handlers = new ArrayList<>();
+        for (Class<?> c = handler.getClass(); c != Object.class; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if (isSubscriber(method)) {
+                    if (method.getParameterCount() != 1) {
+                        throw new IllegalArgumentException("Subscriber method must have exactly one parameter: " + method);
+                    }
+                    Batch batch = method.getAnnotation(Batch.class);
+                    handlers.add(batch == null ? new Handler(handler, method) : new BatchHandler(handler, method, batch));
+                }
+            }
+        }
+        synchronized (registrations) {
+            if (registrations.containsKey(handler)) {
+                throw new IllegalArgumentException("Handler already registered: " + handler);
+            }
+            if (timer == null && handlers.stream().anyMatch(h -> h instanceof BatchHandler)) {
+                timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, LocalEventBus.class.getSimpleName() + "-Batcher");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+            registrations.put(handler, handlers);
+            reindex();
+        }
+    }
+
+    public void register(Object... handlers) {
+        for (Object handler : handlers) {
+            register(handler);
+        }
+    }
+
+    public void unregister(Object handler) {
+        List<Handler> handlers;
+        synchronized (registrations) {
+            handlers = registrations.remove(handler);
+            if (handlers == null) {
+                throw new IllegalArgumentException("Handler not registered: " + handler);
+            }
+            reindex();
+        }
+        handlers.forEach(Handler::flush);
+    }
+
+    /**
+     * Hands the events waiting in batches to their handlers and stops the linger timer.
+     */
+    @PreDestroy
+    public void close() {
+        ScheduledExecutorService timer;
+        synchronized (registrations) {
+            timer = this.timer;
+            this.timer = null;
+        }
+        if (timer != null) {
+            timer.shutdown();
+            handlersByType.values().forEach(handlers -> handlers.forEach(Handler::flush));
+        }
+    }
+
+    private void reindex() {
+        Map<Class<?>, List<Handler>> byType = new HashMap<>();
+        for (List<Handler> handlers : registrations.values()) {
+            for (Handler handler : handlers) {
+                byType.computeIfAbsent(handler.eventType, t -> new ArrayList<>()).add(handler);
+            }
+        }
+        handlersByType = byType;
+        handlersByEventClass = new ConcurrentHashMap<>();
+        EventMetadata.invalidateRoutes();
+    }
+
+    private Handler[] handlers(Class<?> eventClass) {
+        Handler[] handlers = handlersByEventClass.get(eventClass);
+        return handlers != null ? handlers : handlersByEventClass.computeIfAbsent(eventClass, this::resolve);
+    }
+
+    private Handler[] resolve(Class<?> eventClass) {
+        Map<Class<?>, List<Handler>> byType = handlersByType;
+        List<Handler> handlers = new ArrayList<>();
+        for (Class<?> type : superTypes(eventClass)) {
+            handlers.addAll(byType.getOrDefault(type, Collections.emptyList()));
+        }
+        return handlers.toArray(new Handler[handlers.size()]);
+    }
+
+    private static Set<Class<?>> superTypes(Class<?> type) {
+        Set<Class<?>> types = new LinkedHashSet<>();
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            types.add(c);
+        }
+        for (Class<?> c : new ArrayList<>(types)) {
+            addInterfaces(c, types);
+        }
+        return types;
+    }
+
+    private static void addInterfaces(Class<?> type, Set<Class<?>> types) {
+        for (Class<?> i : type.getInterfaces()) {
+            if (types.add(i)) {
+                addInterfaces(i, types);
+            }
+        }
+    }
+
+    private static Class<?> batchedType(Method method) {
+        Type type = method.getGenericParameterTypes()[0];
+        if (type instanceof ParameterizedType && ((ParameterizedType) type).getRawType() == List.class) {
+            Type element = ((ParameterizedType) type).getActualTypeArguments()[0];
+            if (element instanceof WildcardType) {
+                element = ((WildcardType) element).getUpperBounds()[0];
+            }
+            if (element instanceof Class) {
+                return (Class<?>) element;
+            }
+        }
+        throw new IllegalArgumentException("Batch subscriber method must take a List of events: " + method);
+    }
+
+    private static boolean isSubscriber(Method method) {
+        if (method.isBridge() || method.isSynthetic()) return false;
+        return method.isAnnotationPresent(Subscribe.class) || hasAnnotation(method, GUAVA_SUBSCRIBE);
+    }
+
+    private static boolean hasAnnotation(Method method, String annotationType) {
+        for (Annotation annotation : method.getDeclaredAnnotations()) {
+            if (annotation.annotationType().getName().equals(annotationType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private class Handler {
+
+        private final Class<?> eventType;
+        final MethodHandle methodHandle;
+        final Executor executor;
+        private final boolean serial;
+        private final String name;
+
+        Handler(Object target, Method method) {
+            this(target, method, method.getParameterTypes()[0]);
+        }
+
+        Handler(Object target, Method method, Class<?> eventType) {
+            this.eventType = eventType;
+            this.name = method.toString();
+            Subscribe subscribe = method.getAnnotation(Subscribe.class);
+            // like Guava, its subscribers are serialized unless they allow concurrent events
+            this.serial = subscribe == null && !hasAnnotation(method, GUAVA_ALLOW_CONCURRENT_EVENTS);
+            int maxConcurrency = serial ? 1 : subscribe == null ? 0 : subscribe.maxConcurrency();
+            this.executor = maxConcurrency > 0 ? new LimitedExecutor(LocalEventBus.this.executor, maxConcurrency) : LocalEventBus.this.executor;
+            try {
+                method.setAccessible(true);
+                this.methodHandle = MethodHandles.lookup().unreflect(method).bindTo(target).asType(HANDLER_TYPE);
+            } catch (IllegalAccessException e) {
+                throw new IllegalArgumentException("Unable to access subscriber method " + method + ": " + e.getMessage(), e);
+            }
+        }
+
+        /**
+         * Called from the posting thread
+         */
+        void dispatch(Event event) {
+            executor.execute(() -> handle(event));
+        }
+
+        /**
+         * Called from the task handling the event for all its handlers: only handlers with their own limit are
+         * dispatched again
+         */
+        void process(Event event) {
+            if (executor == LocalEventBus.this.executor) {
+                handle(event);
+            } else {
+                dispatch(event);
+            }
+        }
+
+        /**
+         * Called from the thread handling the event
+         */
+        void handle(Event event) {
+            if (serial) {
+                // partitioned events are handled from the stripes, outside of the executor limiting the handler
+                synchronized (this) {
+                    invoke(event);
+                }
+            } else {
+                invoke(event);
+            }
+        }
+
+        private void invoke(Event event) {
+            try {
+                methodHandle.invokeExact((Object) event);
+            } catch (Throwable err) {
+                exceptionHandler.accept(event, err);
+            }
+        }
+
+        void flush() {
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private class BatchHandler extends Handler {
+
+        private final int maxSize;
+        private final long maxLinger;
+        private List<Event> events;
+        private boolean lingering;
+        private long generation;
+
+        BatchHandler(Object target, Method method, Batch batch) {
+            super(target, method, batchedType(method));
+            if (batch.maxSize() < 1) throw new IllegalArgumentException("Invalid batch size on " + method);
+            this.maxSize = batch.maxSize();
+            this.maxLinger = batch.maxLinger();
+        }
+
+        @Override
+        void dispatch(Event event) {
+            List<Event> full = null;
+            synchronized (this) {
+                if (events == null) {
+                    events = new ArrayList<>(Math.min(maxSize, 1024));
+                    long batch = ++generation;
+                    lingering = maxSize > 1 && schedule(batch);
+                }
+                events.add(event);
+                if (!lingering || events.size() >= maxSize) {
+                    full = events;
+                    events = null;
+                }
+            }
+            if (full != null) {
+                List<Event> batch = full;
+                BoundedExecutor.executeAccepted(executor, () -> handleBatch(batch));
+            }
+        }
+
+        /**
+         * @return false when the bus is closed and the batch will not be flushed by the timer
+         */
+        private boolean schedule(long batch) {
+            ScheduledExecutorService timer = LocalEventBus.this.timer;
+            if (timer == null) return false;
+            try {
+                timer.schedule(() -> flush(batch), maxLinger, TimeUnit.MILLISECONDS);
+                return true;
+            } catch (RejectedExecutionException e) {
+                // closing
+                return false;
+            }
+        }
+
+        @Override
+        void handle(Event event) {
+            dispatch(event);
+        }
+
+        @Override
+        void process(Event event) {
+            dispatch(event);
+        }
+
+        @Override
+        void flush() {
+            flush(-1);
+        }
+
+        private void flush(long batch) {
+            List<Event> pending;
+            synchronized (this) {
+                if (events == null || batch != -1 && batch != generation) return;
+                pending = events;
+                events = null;
+            }
+            BoundedExecutor.executeAccepted(executor, () -> handleBatch(pending));
+        }
+
+        private void handleBatch(List<Event> batch) {
+            try {
+                methodHandle.invokeExact((Object) Collections.unmodifiableList(batch));
+            } catch (Throwable err) {
+                for (Event event : batch) {
+                    exceptionHandler.accept(event, err);
+                }
+            }
+        }
+    }
+
+}
@@ -17,16 +17,34 @@ package com.guestful.bus;
 
 import com.guestful.json.JsonMapper;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
 import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
 import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -40,6 +58,26 @@ public class MongoScheduler implements Scheduler {
     private final DBCollection collection;
     private final JsonMapper jsonMapper;
     private final EventBus eventBus;
+    private final ConcurrentMap<String, Class<? extends Event>> eventClasses = new ConcurrentHashMap<>();
+    private EventCodec codec;
+    private Executor executor = Runnable::run;
+    private Executor chunkExecutor = Runnable::run;
+    private Semaphore chunkPermits = new Semaphore(1);
+    private int chunkSize = 1000;
+    private WriteConcern writeConcern;
+    private BiConsumer<List<ScheduledEvent>, Exception> chunkErrorHandler = (events, err) -> LOGGER.log(Level.SEVERE, "Error scheduling " + events.size() + " events: " + err.getMessage() + ". Events: " + events, err);
+    private int claimSize = 100;
+    private long minIdle = 1000;
+    private long maxIdle = 60 * 1000;
+    private final Object wakeUp = new Object();
+    private long wakeUpTime = Long.MAX_VALUE;
+    private Thread poller;
+    private long firedRetention;
+    private long errorRetention;
+    private DBCollection archive;
+    private long compactionInterval = 60 * 60 * 1000;
+    private volatile long lastCompaction;
+    private PartitionLeases partitions;
 
     public MongoScheduler(DBCollection collection, JsonMapper jsonMapper) {
         this(collection, jsonMapper, null);
@@ -51,19 +89,336 @@ public class MongoScheduler implements Scheduler {
         this.eventBus = eventBus;
     }
 
+    /**
+     * @param codec codec storing the scheduled events as binary data. By default, they are stored as JSON strings.
+     *              Events stored as JSON strings can always be read back.
+     */
+    public void setCodec(EventCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @param executor executor firing the claimed events. By default, they are fired by the thread calling produce().
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @param chunkSize maximum number of scheduled events inserted in one bulk write
+     */
+    public void setChunkSize(int chunkSize) {
+        if (chunkSize < 1) throw new IllegalArgumentException("chunkSize: " + chunkSize);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @param writeConcern write concern of the inserts. By default, the one of the collection.
+     */
+    public void setWriteConcern(WriteConcern writeConcern) {
+        this.writeConcern = writeConcern;
+    }
+
+    /**
+     * @param chunkExecutor executor writing the chunks of scheduled events. By default, they are written one after
+     *                      another by the thread calling schedule().
+     * @param maxInFlight   maximum number of chunks built and being written at the same time, bounding memory use
+     */
+    public void setChunkExecutor(Executor chunkExecutor, int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maxInFlight: " + maxInFlight);
+        this.chunkExecutor = chunkExecutor;
+        this.chunkPermits = new Semaphore(maxInFlight);
+    }
+
+    /**
+     * @param chunkErrorHandler receives the scheduled events of a chunk which could not be inserted. By default, they are logged.
+     */
+    public void setChunkErrorHandler(BiConsumer<List<ScheduledEvent>, Exception> chunkErrorHandler) {
+        this.chunkErrorHandler = chunkErrorHandler;
+    }
+
+    /**
+     * @param claimSize maximum number of due events claimed in one round trip
+     */
+    public void setClaimSize(int claimSize) {
+        if (claimSize < 1) throw new IllegalArgumentException("claimSize: " + claimSize);
+        this.claimSize = claimSize;
+    }
+
+    /**
+     * Sets the bounds of the poller sleep when no event is pending: it starts at minIdle and doubles up to maxIdle. The
+     * poller never sleeps longer than maxIdle, so that events scheduled by other nodes and timed out claims are found.
+     */
+    public void setIdle(long minIdle, long maxIdle, TimeUnit unit) {
+        if (minIdle < 1 || maxIdle < minIdle) throw new IllegalArgumentException("minIdle: " + minIdle + ", maxIdle: " + maxIdle);
+        this.minIdle = unit.toMillis(minIdle);
+        this.maxIdle = unit.toMillis(maxIdle);
+    }
+
+    /**
+     * Sets how long FIRED (or CANCELLED) and ERROR documents are kept. They are removed by a TTL index created by {@link #init()},
+     * unless an archive collection is set. Documents fired before the retention is set are kept. 0 keeps them forever.
+     */
+    public void setRetention(long firedRetention, long errorRetention, TimeUnit unit) {
+        if (firedRetention < 0 || errorRetention < 0) throw new IllegalArgumentException("firedRetention: " + firedRetention + ", errorRetention: " + errorRetention);
+        this.firedRetention = unit.toMillis(firedRetention);
+        this.errorRetention = unit.toMillis(errorRetention);
+    }
+
+    /**
+     * @param archive            collection receiving the FIRED and ERROR documents once their retention period is over
+     * @param compactionInterval how often the poller moves documents to the archive collection
+     */
+    public void setArchive(DBCollection archive, long compactionInterval, TimeUnit unit) {
+        this.archive = archive;
+        this.compactionInterval = unit.toMillis(compactionInterval);
+    }
+
+    /**
+     * Enables partitioned claiming: each scheduled event gets one of partitionCount partitions when inserted, and each
+     * node only claims the events of the partitions it leases, so that nodes do not compete for the same documents.
+     * Partition leases are shared between the live nodes through the given coordination collection and renewed every
+     * third of the lease timeout. The partitions of a node which stops renewing its leases are taken over by the others.
+     */
+    public void setPartitioning(DBCollection leases, int partitionCount, long leaseTimeout, TimeUnit unit) {
+        if (partitionCount < 1 || leaseTimeout < 1) throw new IllegalArgumentException("partitionCount: " + partitionCount + ", leaseTimeout: " + leaseTimeout);
+        this.partitions = new PartitionLeases(leases, partitionCount, unit.toMillis(leaseTimeout));
+    }
+
+    /**
+     * Creates the indexes used to find due and keyed events and, when this scheduler has an event bus, starts a poller thread firing
+     * the events when they are due. Indexes are built in the background so that building them on a large collection does
+     * not lock the database. Applications calling {@link #produce()} on their own timer should stop doing so once this
+     * poller runs.
+     */
+    @PostConstruct
+    public void init() {
+        collection.createIndex(new BasicDBObject()
+            .append("status", 1)
+            .append("scheduledTime", 1)
+            .append("updatedDate", 1), new BasicDBObject("background", true));
+        // only pending events have a pendingKey: a key is pending once, even when scheduled concurrently by several nodes
+        collection.createIndex(new BasicDBObject("pendingKey", 1), new BasicDBObject("background", true).append("unique", true).append("sparse", true));
+        if (partitions != null) {
+            collection.createIndex(new BasicDBObject()
+                .append("partition", 1)
+                .append("status", 1)
+                .append("scheduledTime", 1), new BasicDBObject("background", true));
+        }
+        if (archive == null && (firedRetention > 0 || errorRetention > 0)) {
+            collection.createIndex(new BasicDBObject("expireAt", 1), new BasicDBObject("background", true).append("expireAfterSeconds", 0));
+        }
+        if (eventBus != null && poller == null) {
+            poller = new Thread(MongoScheduler.class.getSimpleName() + "-Poller") {
+                @Override
+                public void run() {
+                    long idle = minIdle;
+                    while (!Thread.currentThread().isInterrupted() && poller == this) {
+                        try {
+                            produce();
+                            if (archive != null && System.currentTimeMillis() - lastCompaction > compactionInterval) {
+                                compact();
+                            }
+                            DBObject next = collection.findOne(
+                                partitioned(new BasicDBObject("status", "PENDING")),
+                                new BasicDBObject("scheduledTime", 1),
+                                new BasicDBObject("scheduledTime", 1));
+                            long wait;
+                            if (next == null) {
+                                wait = idle;
+                                idle = Math.min(idle * 2, maxIdle);
+                            } else {
+                                idle = minIdle;
+                                wait = Math.min(((Date) next.get("scheduledTime")).getTime() - System.currentTimeMillis(), maxIdle);
+                            }
+                            if (partitions != null) {
+                                wait = Math.min(wait, partitions.getLeaseTimeout() / 3);
+                            }
+                            idle(wait);
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } catch (Exception e) {
+                            LOGGER.log(Level.SEVERE, "Poller error: " + e.getMessage(), e);
+                            try {
+                                Thread.sleep(maxIdle);
+                            } catch (InterruptedException ie) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    }
+                }
+            };
+            poller.start();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        Thread poller = this.poller;
+        if (poller != null) {
+            this.poller = null;
+            poller.interrupt();
+        }
+        if (partitions != null) {
+            partitions.close();
+        }
+    }
+
+    /**
+     * Sleeps until the given time or until an earlier event is scheduled on this node. A wake-up requested while the
+     * poller was not sleeping is kept until a sleep honours it.
+     */
+    private void idle(long wait) throws InterruptedException {
+        synchronized (wakeUp) {
+            long now = System.currentTimeMillis();
+            wakeUpTime = Math.min(wakeUpTime, now + Math.max(wait, 0));
+            while (now < wakeUpTime) {
+                wakeUp.wait(wakeUpTime - now);
+                now = System.currentTimeMillis();
+            }
+            wakeUpTime = Long.MAX_VALUE;
+        }
+    }
+
+    private void wakeUp(long scheduledTime) {
+        synchronized (wakeUp) {
+            if (scheduledTime < wakeUpTime) {
+                wakeUpTime = scheduledTime;
+                wakeUp.notify();
+            }
+        }
+    }
+
+    /**
+     * Inserts the scheduled events in chunks of {@link #setChunkSize(int) chunkSize} events, consuming the stream as the
+     * chunks are written. A chunk failing to be written is reported to the {@link #setChunkErrorHandler(BiConsumer) chunk
+     * error handler} with the events which were not inserted, or with all its events when the write concern failed, and
+     * does not prevent the other chunks from being written.
+     */
     @Override
     public void schedule(Stream<ScheduledEvent> scheduledEvents) {
         LOGGER.finest("schedule() " + scheduledEvents);
-        collection.insert(scheduledEvents.map(scheduledEvent ->
-            new BasicDBObject()
-                .append("id", scheduledEvent.getId())
-                .append("scheduledTime", scheduledEvent.getScheduledTime())
-                .append("name", scheduledEvent.getScheduledEvent().getClass().getName())
-                .append("status", "PENDING")
-                .append("createdDate", scheduledEvent.getTime())
-                .append("updatedDate", scheduledEvent.getTime())
-                .append("data", jsonMapper.toJson(scheduledEvent.getScheduledEvent())))
-            .collect(Collectors.toList()));
+        List<CompletableFuture<Void>> pending = new ArrayList<>();
+        List<ScheduledEvent> chunk = new ArrayList<>(chunkSize);
+        Iterator<ScheduledEvent> it = scheduledEvents.iterator();
+        try {
+            while (it.hasNext()) {
+                chunk.add(it.next());
+                if (chunk.size() == chunkSize || !it.hasNext()) {
+                    List<ScheduledEvent> events = chunk;
+                    chunk = new ArrayList<>(chunkSize);
+                    chunkPermits.acquire();
+                    try {
+                        pending.add(CompletableFuture.runAsync(() -> insert(events), chunkExecutor)
+                            .whenComplete((v, e) -> chunkPermits.release()));
+                    } catch (RuntimeException e) {
+                        chunkPermits.release();
+                        throw e;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while scheduling events", e);
+        } finally {
+            CompletableFuture.allOf(pending.toArray(new CompletableFuture[pending.size()])).exceptionally(e -> null).join();
+        }
+    }
+
+    private void insert(List<ScheduledEvent> scheduledEvents) {
+        insert(scheduledEvents, true);
+    }
+
+    /**
+     * @param retryConflicts whether to write again the keyed events whose upsert lost a race against the concurrent
+     *                       upsert of the same key. The retried upsert replaces the event inserted by the winner.
+     */
+    private void insert(List<ScheduledEvent> scheduledEvents, boolean retryConflicts) {
+        long earliest = Long.MAX_VALUE;
+        try {
+            BulkWriteOperation inserts = collection.initializeUnorderedBulkOperation();
+            for (ScheduledEvent scheduledEvent : scheduledEvents) {
+                earliest = Math.min(earliest, scheduledEvent.getScheduledTime().getTime());
+                BasicDBObject object = new BasicDBObject()
+                    .append("id", scheduledEvent.getId())
+                    .append("scheduledTime", scheduledEvent.getScheduledTime())
+                    .append("name", scheduledEvent.getScheduledEvent().getClass().getName())
+                    .append("status", "PENDING")
+                    .append("createdDate", scheduledEvent.getTime())
+                    .append("updatedDate", scheduledEvent.getTime());
+                if (partitions != null) {
+                    object.append("partition", partitions.partitionOf(scheduledEvent.getId()));
+                }
+                if (codec == null) {
+                    object.append("data", jsonMapper.toJson(scheduledEvent.getScheduledEvent()));
+                } else {
+                    object
+                        .append("codec", codec.getName())
+                        .append("data", codec.encode(scheduledEvent.getScheduledEvent()));
+                }
+                if (scheduledEvent.getKey() == null) {
+                    inserts.insert(object);
+                } else {
+                    object
+                        .append("key", scheduledEvent.getKey())
+                        .append("pendingKey", scheduledEvent.getKey());
+                    inserts.find(new BasicDBObject("pendingKey", scheduledEvent.getKey())).upsert().replaceOne(object);
+                }
+            }
+            inserts.execute(writeConcern == null ? collection.getWriteConcern() : writeConcern);
+        } catch (BulkWriteException e) {
+            if (e.getWriteErrors().isEmpty() || e.getWriteConcernError() != null) {
+                // the write concern was not satisfied: none of the events of the chunk is known to be durable
+                chunkErrorHandler.accept(scheduledEvents, e);
+                return;
+            }
+            List<ScheduledEvent> failed = new ArrayList<>(e.getWriteErrors().size());
+            List<ScheduledEvent> conflicts = new ArrayList<>();
+            for (BulkWriteError error : e.getWriteErrors()) {
+                ScheduledEvent scheduledEvent = scheduledEvents.get(error.getIndex());
+                boolean duplicateKey = error.getCode() == 11000 || error.getCode() == 11001;
+                if (retryConflicts && duplicateKey && scheduledEvent.getKey() != null) {
+                    conflicts.add(scheduledEvent);
+                } else {
+                    failed.add(scheduledEvent);
+                }
+            }
+            if (!conflicts.isEmpty()) {
+                insert(conflicts, false);
+            }
+            if (!failed.isEmpty()) {
+                chunkErrorHandler.accept(failed, e);
+            }
+        } catch (RuntimeException e) {
+            chunkErrorHandler.accept(scheduledEvents, e);
+            return;
+        }
+        if (poller != null) {
+            wakeUp(earliest);
+        }
+    }
+
+    @Override
+    public void cancel(String key) {
+        Date now = new Date();
+        collection.update(
+            new BasicDBObject("pendingKey", key),
+            new BasicDBObject("$set", expiring(new BasicDBObject()
+                .append("updatedDate", now)
+                .append("status", "CANCELLED"), firedRetention))
+                .append("$unset", new BasicDBObject("pendingKey", "")));
+    }
+
+    @Override
+    public void reschedule(String key, Date scheduledTime) {
+        collection.update(
+            new BasicDBObject("pendingKey", key),
+            new BasicDBObject("$set", new BasicDBObject()
+                .append("updatedDate", new Date())
+                .append("scheduledTime", scheduledTime)));
+        if (poller != null) {
+            wakeUp(scheduledTime.getTime());
+        }
     }
 
     public void produce() {
@@ -72,50 +427,180 @@ public class MongoScheduler implements Scheduler {
 
     public void produce(BiConsumer<Map, Exception> onError) {
         if (eventBus == null) throw new UnsupportedOperationException();
-        Map scheduledEvent;
-        while ((scheduledEvent = next()) != null) {
-            LOGGER.finest("produce() " + scheduledEvent);
-            try {
-                Class<?> eventClass = Thread.currentThread().getContextClassLoader().loadClass((String) scheduledEvent.get("name"));
-                if (!Event.class.isAssignableFrom(eventClass)) {
-                    throw new IllegalStateException("Not an event: " + eventClass.getName());
-                }
-                eventBus.post((Event) jsonMapper.fromJson((String) scheduledEvent.get("data"), eventClass));
-                collection.update(new BasicDBObject("id", scheduledEvent.get("id")), new BasicDBObject("$set", new BasicDBObject()
-                    .append("updatedDate", new Date())
-                    .append("status", "FIRED")));
-            } catch (Exception err) {
+        List<Map> scheduledEvents;
+        while (!(scheduledEvents = claim()).isEmpty()) {
+            List<CompletableFuture<Void>> results = new ArrayList<>(scheduledEvents.size());
+            for (Map scheduledEvent : scheduledEvents) {
+                results.add(CompletableFuture.runAsync(() -> fire(scheduledEvent), executor));
+            }
+            BulkWriteOperation transitions = collection.initializeUnorderedBulkOperation();
+            List<Object> fired = new ArrayList<>(scheduledEvents.size());
+            Object lease = scheduledEvents.get(0).get("lease");
+            Date now = new Date();
+            for (int i = 0; i < scheduledEvents.size(); i++) {
+                Map scheduledEvent = scheduledEvents.get(i);
                 try {
-                    collection.update(
-                        new BasicDBObject("id", scheduledEvent.get("id")),
-                        new BasicDBObject("$set", new BasicDBObject()
-                            .append("updatedDate", new Date())
+                    results.get(i).join();
+                    fired.add(scheduledEvent.get("id"));
+                } catch (CompletionException e) {
+                    Exception err = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                    transitions.find(new BasicDBObject("id", scheduledEvent.get("id")).append("lease", lease))
+                        .updateOne(new BasicDBObject("$set", expiring(new BasicDBObject()
+                            .append("updatedDate", now)
                             .append("status", "ERROR")
-                            .append("error", err.getMessage())));
-                } finally {
+                            .append("error", err.getMessage()), errorRetention)));
                     onError.accept(scheduledEvent, err);
                 }
             }
+            if (!fired.isEmpty()) {
+                transitions.find(new BasicDBObject("id", new BasicDBObject("$in", fired)).append("lease", lease))
+                    .update(new BasicDBObject("$set", expiring(new BasicDBObject()
+                        .append("updatedDate", now)
+                        .append("status", "FIRED"), firedRetention)));
+            }
+            transitions.execute();
         }
     }
 
-    private Map next() {
+    private void fire(Map scheduledEvent) {
+        LOGGER.finest("produce() " + scheduledEvent);
+        Class<? extends Event> eventClass = eventClasses.computeIfAbsent((String) scheduledEvent.get("name"), MongoScheduler::loadEventClass);
+        Object data = scheduledEvent.get("data");
+        String codecName = (String) scheduledEvent.get("codec");
+        if (codecName == null) {
+            eventBus.post(jsonMapper.fromJson((String) data, eventClass));
+        } else if (codec != null && codec.getName().equals(codecName)) {
+            eventBus.post(codec.decode((byte[]) data, eventClass));
+        } else {
+            throw new IllegalStateException("No codec to decode " + codecName + " payload");
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Event> loadEventClass(String name) {
+        try {
+            Class<?> eventClass = Thread.currentThread().getContextClassLoader().loadClass(name);
+            if (!Event.class.isAssignableFrom(eventClass)) {
+                throw new IllegalStateException("Not an event: " + eventClass.getName());
+            }
+            return (Class<? extends Event>) eventClass;
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Unknown event class: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Leases up to {@link #setClaimSize(int) claimSize} due events at once: they are marked LOADING with a lease token
+     * so that no other node claims them until they are fired or their lease times out.
+     */
+    private List<Map> claim() {
+        if (partitions != null) {
+            partitions.rebalanceIfDue();
+            if (partitions.getOwned().isEmpty()) return Collections.emptyList();
+        }
         long now = System.currentTimeMillis();
-        DBObject object = collection.findAndModify(
-            new BasicDBObject()
-                .append("scheduledTime", new BasicDBObject("$lte", new Date(now)))
-                .append("$or", Arrays.asList(
-                    new BasicDBObject("status", "PENDING"),
-                    new BasicDBObject("status", "LOADING").append("updatedDate", new BasicDBObject("$lte", new Date(now - MINS_5))))),
-            null,
-            null,
-            false,
+        List<Object> ids = new ArrayList<>(claimSize);
+        try (DBCursor cursor = collection.find(partitioned(due(now)), new BasicDBObject("id", 1))
+            .sort(new BasicDBObject("scheduledTime", 1))
+            .limit(claimSize)) {
+            for (DBObject object : cursor) {
+                ids.add(object.get("id"));
+            }
+        }
+        if (ids.isEmpty()) return Collections.emptyList();
+        String lease = UUID.randomUUID().toString();
+        collection.updateMulti(
+            due(now).append("id", new BasicDBObject("$in", ids)),
             new BasicDBObject("$set", new BasicDBObject()
                 .append("updatedDate", new Date(now))
-                .append("status", "LOADING")),
-            true,
-            false);
-        return object == null ? null : object.toMap();
+                .append("status", "LOADING")
+                .append("lease", lease))
+                .append("$unset", new BasicDBObject("pendingKey", "")));
+        List<Map> claimed = new ArrayList<>(ids.size());
+        try (DBCursor cursor = collection.find(new BasicDBObject("lease", lease).append("status", "LOADING"))) {
+            for (DBObject object : cursor) {
+                claimed.add(object.toMap());
+            }
+        }
+        return claimed;
+    }
+
+    /**
+     * Sets the expiration date read by the TTL index on a FIRED or ERROR transition, unless documents are archived
+     */
+    private BasicDBObject expiring(BasicDBObject transition, long retention) {
+        if (retention > 0 && archive == null) {
+            transition.append("expireAt", new Date(((Date) transition.get("updatedDate")).getTime() + retention));
+        }
+        return transition;
+    }
+
+    /**
+     * Moves the FIRED, CANCELLED and ERROR documents older than their retention period to the archive collection
+     */
+    public void compact() {
+        if (archive == null) throw new UnsupportedOperationException();
+        long now = System.currentTimeMillis();
+        int moved = 0;
+        if (firedRetention > 0) {
+            moved += compact("FIRED", new Date(now - firedRetention));
+            moved += compact("CANCELLED", new Date(now - firedRetention));
+        }
+        if (errorRetention > 0) {
+            moved += compact("ERROR", new Date(now - errorRetention));
+        }
+        if (moved > 0 && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Archived " + moved + " scheduled events");
+        }
+        lastCompaction = now;
+    }
+
+    private int compact(String status, Date before) {
+        int moved = 0;
+        List<DBObject> batch;
+        do {
+            batch = new ArrayList<>(chunkSize);
+            try (DBCursor cursor = collection.find(new BasicDBObject("status", status).append("updatedDate", new BasicDBObject("$lt", before))).limit(chunkSize)) {
+                for (DBObject object : cursor) {
+                    batch.add(object);
+                }
+            }
+            if (!batch.isEmpty()) {
+                BulkWriteOperation copies = archive.initializeUnorderedBulkOperation();
+                List<Object> ids = new ArrayList<>(batch.size());
+                for (DBObject object : batch) {
+                    copies.find(new BasicDBObject("_id", object.get("_id"))).upsert().replaceOne(object);
+                    ids.add(object.get("_id"));
+                }
+                copies.execute();
+                collection.remove(new BasicDBObject("_id", new BasicDBObject("$in", ids)));
+                moved += batch.size();
+            }
+        } while (batch.size() == chunkSize);
+        return moved;
+    }
+
+    /**
+     * Restricts the query to the partitions leased by this node. The owner of partition 0 also claims the events
+     * scheduled before partitioning was enabled.
+     */
+    private BasicDBObject partitioned(BasicDBObject query) {
+        if (partitions != null) {
+            List<Object> owned = new ArrayList<>(partitions.getOwned());
+            if (owned.contains(0)) {
+                owned.add(null);
+            }
+            query.append("partition", new BasicDBObject("$in", owned));
+        }
+        return query;
+    }
+
+    private static BasicDBObject due(long now) {
+        return new BasicDBObject()
+            .append("scheduledTime", new BasicDBObject("$lte", new Date(now)))
+            .append("$or", Arrays.asList(
+                new BasicDBObject("status", "PENDING"),
+                new BasicDBObject("status", "LOADING").append("updatedDate", new BasicDBObject("$lte", new Date(now - MINS_5)))));
     }
 
 }
@@ -17,20 +17,54 @@ package com.guestful.bus;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.Executor;
-import java.util.stream.Collectors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Stream;
 
 /**
  * date 2014-06-02
+ * <p>
+ * Each event is handed to the delegates accepting its type. {@link #postAsync(Stream)} completes when all of them are
+ * done: a failing or timed out delegate does not prevent the others from receiving the events, and the returned stage
+ * fails with the first failure, the other ones being suppressed.
+ * <p>
+ * With {@link EventExecutors#newVirtualThreadExecutor() virtual threads}, blocking delegates each post on their own
+ * thread; {@link #setMaxConcurrency(EventBus, int)} bounds the posts of a delegate using a limited resource.
  *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class MultipleEventBus implements EventBus {
 
-    private final Collection<EventBus> delegates = new ArrayList<>();
+    private static final ScheduledThreadPoolExecutor TIMEOUTS = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread thread = new Thread(r, MultipleEventBus.class.getSimpleName() + "-Timeouts");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        TIMEOUTS.setRemoveOnCancelPolicy(true);
+    }
+
+    private final List<EventBus> delegates = new CopyOnWriteArrayList<>();
+    private final Map<EventBus, Long> timeouts = new ConcurrentHashMap<>();
+    private final Map<EventBus, Executor> executors = new ConcurrentHashMap<>();
     private final Executor executor;
+    private volatile Routes routes = new Routes(-1);
+    private volatile long timeout;
 
     public MultipleEventBus() {
         this(Runnable::run);
@@ -42,14 +76,159 @@ public class MultipleEventBus implements EventBus {
 
     public MultipleEventBus add(EventBus eventBus) {
         delegates.add(eventBus);
+        EventMetadata.invalidateRoutes();
         return this;
     }
 
+    /**
+     * @param timeout time after which {@link #postAsync(Stream)} considers this delegate failed
+     */
+    public MultipleEventBus add(EventBus eventBus, long timeout, TimeUnit unit) {
+        timeouts.put(eventBus, unit.toMillis(timeout));
+        return add(eventBus);
+    }
+
+    /**
+     * @param maxConcurrency maximum number of posts to this delegate running at the same time
+     */
+    public MultipleEventBus setMaxConcurrency(EventBus eventBus, int maxConcurrency) {
+        executors.put(eventBus, new LimitedExecutor(executor, maxConcurrency));
+        return this;
+    }
+
+    /**
+     * @param timeout time after which {@link #postAsync(Stream)} considers failed a delegate added without timeout.
+     *                0 (the default) waits for them.
+     */
+    public void setTimeout(long timeout, TimeUnit unit) {
+        this.timeout = unit.toMillis(timeout);
+    }
+
+    @Override
+    public boolean accepts(Class<? extends Event> eventType) {
+        for (EventBus eventBus : delegates) {
+            if (eventBus.accepts(eventType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        Set<Class<?>> types = new HashSet<>();
+        for (EventBus eventBus : delegates) {
+            types.addAll(eventBus.getAcceptedTypes());
+        }
+        return types;
+    }
+
     @Override
     public void post(Stream<? extends Event> eventStream) {
-        List<? extends Event> events = eventStream.collect(Collectors.<Event>toList());
+        Map<EventBus, List<Event>> routed = route(eventStream);
         for (EventBus eventBus : delegates) {
-            executor.execute(() -> eventBus.post(events));
+            List<Event> events = routed.get(eventBus);
+            if (events != null) {
+                executorOf(eventBus).execute(() -> eventBus.post(events));
+            }
+        }
+    }
+
+    @Override
+    public CompletionStage<Void> postAsync(Stream<? extends Event> eventStream) {
+        Map<EventBus, List<Event>> routed = route(eventStream);
+        List<CompletableFuture<Void>> futures = new ArrayList<>(routed.size());
+        for (EventBus eventBus : delegates) {
+            List<Event> events = routed.get(eventBus);
+            if (events != null) {
+                futures.add(postAsync(eventBus, events));
+            }
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).whenComplete((v, err) -> {
+            if (err == null) {
+                done.complete(null);
+                return;
+            }
+            List<Throwable> failures = new ArrayList<>();
+            for (CompletableFuture<Void> future : futures) {
+                if (future.isCompletedExceptionally()) {
+                    future.whenComplete((r, e) -> failures.add(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e));
+                }
+            }
+            Throwable failure = failures.get(0);
+            for (int i = 1; i < failures.size(); i++) {
+                if (failures.get(i) != failure) {
+                    failure.addSuppressed(failures.get(i));
+                }
+            }
+            done.completeExceptionally(failure);
+        });
+        return done;
+    }
+
+    private CompletableFuture<Void> postAsync(EventBus eventBus, List<Event> events) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        try {
+            executorOf(eventBus).execute(() -> {
+                try {
+                    eventBus.postAsync(events).whenComplete((v, err) -> {
+                        if (err == null) {
+                            future.complete(null);
+                        } else {
+                            future.completeExceptionally(err);
+                        }
+                    });
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+        }
+        long timeout = timeouts.getOrDefault(eventBus, this.timeout);
+        if (timeout > 0 && !future.isDone()) {
+            ScheduledFuture<?> timer = TIMEOUTS.schedule(() -> future.completeExceptionally(new TimeoutException(eventBus.getClass().getName() + " did not complete within " + timeout + "ms")), timeout, TimeUnit.MILLISECONDS);
+            future.whenComplete((v, err) -> timer.cancel(false));
+        }
+        return future;
+    }
+
+    private Executor executorOf(EventBus eventBus) {
+        return executors.getOrDefault(eventBus, executor);
+    }
+
+    private Map<EventBus, List<Event>> route(Stream<? extends Event> eventStream) {
+        Map<EventBus, List<Event>> routed = new IdentityHashMap<>();
+        eventStream.forEach(event -> {
+            for (EventBus eventBus : routes(event.getClass())) {
+                routed.computeIfAbsent(eventBus, b -> new ArrayList<>()).add(event);
+            }
+        });
+        return routed;
+    }
+
+    /**
+     * @return the delegates accepting this event type, from a routing table rebuilt when accepted types change
+     */
+    private EventBus[] routes(Class<? extends Event> eventType) {
+        Routes current = routes;
+        long version = EventMetadata.getRoutesVersion();
+        if (current.version != version) {
+            routes = current = new Routes(version);
+        }
+        return current.byType.computeIfAbsent(eventType, type -> delegates.stream()
+            .filter(eventBus -> eventBus.accepts(eventType))
+            .toArray(EventBus[]::new));
+    }
+
+    private static class Routes {
+
+        final long version;
+        final ConcurrentMap<Class<?>, EventBus[]> byType = new ConcurrentHashMap<>();
+
+        Routes(long version) {
+            this.version = version;
         }
     }
 
@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shares a fixed number of partitions between the live nodes through leases stored in a coordination collection.
+ * <p>
+ * Each node heartbeats a node document and renews the leases of its partitions on each {@link #rebalance()}. It then
+ * releases the partitions above its fair share, or takes free and expired partitions up to it. When a node dies, its
+ * leases expire and the remaining nodes share its partitions.
+ * <p>
+ * Rebalancing and releasing are synchronized, since both the scheduler poller and the threads calling
+ * {@link MongoScheduler#produce()} claim events.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class PartitionLeases {
+
+    private static final Logger LOGGER = Logger.getLogger(PartitionLeases.class.getName());
+
+    private final DBCollection leases;
+    private final int partitionCount;
+    private final long leaseTimeout;
+    private final String nodeId = UUID.randomUUID().toString();
+    private volatile List<Integer> owned = Collections.emptyList();
+    private long lastRebalance;
+
+    PartitionLeases(DBCollection leases, int partitionCount, long leaseTimeout) {
+        this.leases = leases;
+        this.partitionCount = partitionCount;
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    int partitionOf(String id) {
+        return (id.hashCode() & 0x7FFFFFFF) % partitionCount;
+    }
+
+    /**
+     * @return the partitions leased by this node at the last rebalance
+     */
+    List<Integer> getOwned() {
+        return owned;
+    }
+
+    long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * Rebalances when a third of the lease timeout has elapsed since the last rebalance, so that leases are renewed
+     * before they expire
+     */
+    synchronized void rebalanceIfDue() {
+        if (System.currentTimeMillis() - lastRebalance > leaseTimeout / 3) {
+            rebalance();
+        }
+    }
+
+    synchronized void rebalance() {
+        Date now = new Date();
+        lastRebalance = now.getTime();
+        Date expires = new Date(now.getTime() + leaseTimeout);
+        leases.update(
+            new BasicDBObject("_id", "node:" + nodeId),
+            new BasicDBObject("$set", new BasicDBObject("type", "node").append("expires", expires)),
+            true,
+            false);
+        long liveNodes = Math.max(1, leases.count(new BasicDBObject("type", "node").append("expires", new BasicDBObject("$gt", now))));
+        int fairShare = (int) ((partitionCount + liveNodes - 1) / liveNodes);
+        leases.updateMulti(
+            new BasicDBObject("type", "partition").append("owner", nodeId),
+            new BasicDBObject("$set", new BasicDBObject("expires", expires)));
+        TreeSet<Integer> partitions = new TreeSet<>();
+        try (DBCursor cursor = leases.find(new BasicDBObject("type", "partition").append("owner", nodeId))) {
+            for (DBObject lease : cursor) {
+                partitions.add(((Number) lease.get("partition")).intValue());
+            }
+        }
+        while (partitions.size() > fairShare) {
+            release(partitions.pollLast());
+        }
+        for (int partition = 0; partition < partitionCount && partitions.size() < fairShare; partition++) {
+            if (!partitions.contains(partition) && acquire(partition, now, expires)) {
+                partitions.add(partition);
+            }
+        }
+        if (!partitions.equals(new TreeSet<>(owned)) && LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine("Node " + nodeId + " owns partitions " + partitions + " of " + partitionCount + " shared by " + liveNodes + " nodes");
+        }
+        owned = Collections.unmodifiableList(new ArrayList<>(partitions));
+    }
+
+    synchronized void close() {
+        for (Integer partition : owned) {
+            release(partition);
+        }
+        owned = Collections.emptyList();
+        lastRebalance = 0;
+        leases.remove(new BasicDBObject("_id", "node:" + nodeId));
+    }
+
+    private boolean acquire(int partition, Date now, Date expires) {
+        try {
+            DBObject lease = leases.findAndModify(
+                new BasicDBObject("_id", "partition:" + partition)
+                    .append("expires", new BasicDBObject("$lte", now)),
+                null,
+                null,
+                false,
+                new BasicDBObject("$set", new BasicDBObject()
+                    .append("type", "partition")
+                    .append("partition", partition)
+                    .append("owner", nodeId)
+                    .append("expires", expires)),
+                true,
+                true);
+            return lease != null;
+        } catch (MongoException e) {
+            // partition owned by another node: the upsert conflicts with its lease
+            return false;
+        }
+    }
+
+    private void release(int partition) {
+        leases.update(
+            new BasicDBObject("_id", "partition:" + partition).append("owner", nodeId),
+            new BasicDBObject("$set", new BasicDBObject("owner", null).append("expires", new Date(0))));
+    }
+
+}
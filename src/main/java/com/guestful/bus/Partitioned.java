@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+/**
+ * Implemented by the events about an entity, for example a reservation, that must be handled in order. A
+ * {@link LocalEventBus} with stripes handles events having the same partition key one after another, in posting order,
+ * while events of different keys are handled in parallel.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public interface Partitioned {
+
+    /**
+     * @return the key of the entity this event is about, or null if the event can be handled in any order
+     */
+    Object getPartitionKey();
+
+}
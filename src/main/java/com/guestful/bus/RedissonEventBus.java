@@ -20,13 +20,32 @@ import org.redisson.core.RTopic;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
 
 /**
+ * Publishes {@link Cluster} events on a Redisson topic and dispatches the events received from other nodes to a delegate.
+ * <p>
+ * Events are published in an {@link Envelope} serialized by the Redisson codec, or as byte arrays encoded with an
+ * {@link EventCodec} when one is set. These byte arrays start with a flag byte, the emitting node id, the id registered by
+ * the codec for the event type, followed by the class name when there is none. They can be deflated above the
+ * {@link Compression} threshold.
+ * <p>
+ * The emitting node id travels next to the event, which is not modified when posted, so that each node drops its own
+ * echoes even when the same event is also posted on other transports.
+ *
  * @author Mathieu Carbou (mathieu.carbou@gmail.com)
  */
 public class RedissonEventBus implements EventBus {
@@ -34,29 +53,62 @@ public class RedissonEventBus implements EventBus {
     private static final Logger LOGGER = Logger.getLogger(RedissonEventBus.class.getName());
 
     private final Redisson redisson;
+    private final Consumer<Object> publisher;
     private final EventBus delegate;
-    private final ConcurrentMap<String, Object> sentEvents = new ConcurrentHashMap<>();
-    private RTopic<Event> topic;
+    private final String nodeId = UUID.randomUUID().toString();
+    private final ConcurrentMap<String, Optional<Class<? extends Event>>> eventTypes = new ConcurrentHashMap<>();
+    private RTopic<Object> topic;
     private int listenerId;
+    private EventCodec codec;
+    private Compression compression;
 
     public RedissonEventBus(EventBus delegate, Redisson redisson) {
         this.delegate = delegate;
         this.redisson = redisson;
+        this.publisher = message -> topic.publish(message);
+    }
+
+    /**
+     * Hands the published messages to the given publisher instead of a Redisson topic. Used by tests.
+     */
+    RedissonEventBus(EventBus delegate, Consumer<Object> publisher) {
+        this.delegate = delegate;
+        this.redisson = null;
+        this.publisher = publisher;
+    }
+
+    /**
+     * @param codec codec encoding the published events to byte arrays. By default, events are serialized by the
+     *              Redisson codec.
+     */
+    public void setCodec(EventCodec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * @return the id published with the events of this bus, and set as {@link Event#getEmiter() emiter} on these
+     * events by the receiving nodes
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * @param compression compression of the encoded events above its threshold. Only applies with a codec.
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    public Compression getCompression() {
+        return compression;
     }
 
     @PostConstruct
     public void init() {
-        if (topic == null) {
+        if (topic == null && redisson != null) {
             topic = redisson.getTopic("eventbus");
-            listenerId = topic.addListener(e -> {
-                if (sentEvents.remove(e.getId()) == null) {
-                    if (LOGGER.isLoggable(Level.FINEST)) {
-                        LOGGER.finest("Received event " + e.getId() + " " + e.getClass().getSimpleName());
-                    }
-                    e.setLocal(false);
-                    delegate.post(e);
-                }
-            });
+            listenerId = topic.addListener(this::receive);
         }
     }
 
@@ -68,17 +120,152 @@ public class RedissonEventBus implements EventBus {
         }
     }
 
+    /**
+     * @return true for {@link Cluster} event types, which are the only ones published
+     */
+    @Override
+    public boolean accepts(Class<? extends Event> eventType) {
+        return EventMetadata.of(eventType).isCluster();
+    }
+
+    /**
+     * @return the {@link Cluster} event types resolved so far, which include every type this bus was asked to
+     * {@link #accepts(Class) accept}
+     */
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        return EventMetadata.getClusterTypes();
+    }
+
     @Override
     public void post(Stream<? extends Event> eventStream) {
         eventStream.forEach(event -> {
-            if (event.isLocal() && event.getClass().isAnnotationPresent(Cluster.class)) {
+            if (event.isLocal() && EventMetadata.of(event.getClass()).isCluster()) {
                 if (LOGGER.isLoggable(Level.FINEST)) {
                     LOGGER.finest("Posting event " + event.getId() + " " + event.getClass().getSimpleName());
                 }
-                sentEvents.put(event.getId(), Void.class);
-                topic.publish(event);
+                publisher.accept(codec == null ? new Envelope(nodeId, event) : encode(event));
             }
         });
     }
 
+    private byte[] encode(Event event) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(0);
+            out.writeUTF(nodeId);
+            TypeHeader.write(out, codec, event.getClass());
+            out.write(codec.encode(event));
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return compression == null ? bytes.toByteArray() : compression.compress(bytes.toByteArray());
+    }
+
+    /**
+     * Dispatches a received message to the delegate, unless it was published by this bus. Called by the topic listener,
+     * and by tests.
+     */
+    void receive(Object message) {
+        Event e;
+        if (message instanceof byte[]) {
+            e = decode((byte[]) message);
+        } else if (message instanceof Envelope) {
+            Envelope envelope = (Envelope) message;
+            e = nodeId.equals(envelope.getEmitter()) ? null : envelope.getEvent();
+            if (e != null) {
+                e.setEmiter(envelope.getEmitter());
+            }
+        } else {
+            LOGGER.warning("Dropping message of unsupported type " + (message == null ? null : message.getClass().getName()));
+            e = null;
+        }
+        if (e != null) {
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("Received event " + e.getId() + " " + e.getClass().getSimpleName());
+            }
+            e.setLocal(false);
+            delegate.post(e);
+        }
+    }
+
+    /**
+     * @return the decoded event, or null for echoes and undecodable messages
+     */
+    private Event decode(byte[] message) {
+        if (codec == null) {
+            LOGGER.warning("Dropping encoded event: no codec");
+            return null;
+        }
+        if (Compression.isCompressed(message)) {
+            message = Compression.decompress(message);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(message, 1, message.length - 1))) {
+            String emitter = in.readUTF();
+            if (nodeId.equals(emitter)) {
+                return null;
+            }
+            int typeId = TypeHeader.readTypeId(in);
+            Class<? extends Event> eventType = typeId == 0 ? resolve(TypeHeader.readName(in)) : codec.getType(typeId);
+            if (eventType == null) {
+                LOGGER.warning("Dropping event of unknown type " + typeId);
+                return null;
+            }
+            byte[] data = new byte[in.available()];
+            in.readFully(data);
+            Event event = codec.decode(data, eventType);
+            event.setEmiter(emitter);
+            return event;
+        } catch (IOException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Class<? extends Event> resolve(String type) {
+        return eventTypes.computeIfAbsent(type, name -> {
+            try {
+                Class<?> c = Thread.currentThread().getContextClassLoader().loadClass(name);
+                if (Event.class.isAssignableFrom(c)) {
+                    return Optional.of((Class<? extends Event>) c);
+                }
+            } catch (ClassNotFoundException ignored) {
+            }
+            return Optional.empty();
+        }).orElse(null);
+    }
+
+    /**
+     * An event and the id of the node which published it
+     */
+    public static class Envelope {
+
+        private String emitter;
+        private Event event;
+
+        public Envelope() {
+        }
+
+        Envelope(String emitter, Event event) {
+            this.emitter = emitter;
+            this.event = event;
+        }
+
+        public String getEmitter() {
+            return emitter;
+        }
+
+        public void setEmitter(String emitter) {
+            this.emitter = emitter;
+        }
+
+        public Event getEvent() {
+            return event;
+        }
+
+        public void setEvent(Event event) {
+            this.event = event;
+        }
+    }
+
 }
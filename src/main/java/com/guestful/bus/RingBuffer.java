@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded FIFO buffer backed by a pre-allocated array, applying an {@link OverflowPolicy} when full.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class RingBuffer<T> {
+
+    private final Object[] slots;
+    private final OverflowPolicy overflowPolicy;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private int head;
+    private int size;
+    private long dropped;
+
+    RingBuffer(int capacity, OverflowPolicy overflowPolicy) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity: " + capacity);
+        this.slots = new Object[capacity];
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return false if the element or an older one has been dropped to respect the capacity
+     */
+    boolean put(T element) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            boolean kept = true;
+            if (size == slots.length) {
+                switch (overflowPolicy) {
+                    case BLOCK:
+                        while (size == slots.length) {
+                            notFull.await();
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        slots[head] = null;
+                        head = (head + 1) % slots.length;
+                        size--;
+                        dropped++;
+                        kept = false;
+                        break;
+                    case DROP_NEWEST:
+                        dropped++;
+                        return false;
+                }
+            }
+            slots[(head + size) % slots.length] = element;
+            size++;
+            notEmpty.signal();
+            return kept;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (size == 0) {
+                notEmpty.await();
+            }
+            T element = (T) slots[head];
+            slots[head] = null;
+            head = (head + 1) % slots.length;
+            size--;
+            notFull.signal();
+            return element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    long getDropped() {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+}
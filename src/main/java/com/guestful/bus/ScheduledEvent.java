@@ -24,6 +24,7 @@ public class ScheduledEvent extends Event {
 
     private Date scheduledTime = new Date();
     private Event scheduledEvent;
+    private String key;
 
     public Date getScheduledTime() {
         return scheduledTime;
@@ -41,6 +42,18 @@ public class ScheduledEvent extends Event {
         this.scheduledEvent = scheduledEvent;
     }
 
+    /**
+     * @return optional dedupe key: scheduling an event replaces the pending event of the same key, and the key is used to
+     * {@link Scheduler#cancel(String) cancel} or {@link Scheduler#reschedule(String, Date) reschedule} it
+     */
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
     @Override
     public String toString() {
         return getScheduledEvent().getClass().getSimpleName() + " at " + getScheduledTime();
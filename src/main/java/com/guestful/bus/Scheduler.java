@@ -15,6 +15,7 @@
  */
 package com.guestful.bus;
 
+import java.util.Date;
 import java.util.stream.Stream;
 
 /**
@@ -24,4 +25,18 @@ public interface Scheduler {
     void schedule(Stream<ScheduledEvent> scheduledEvents);
 
     void produce();
+
+    /**
+     * Cancels the pending event scheduled with the given {@link ScheduledEvent#getKey() key}, if any
+     */
+    default void cancel(String key) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Changes the time of the pending event scheduled with the given {@link ScheduledEvent#getKey() key}, if any
+     */
+    default void reschedule(String key, Date scheduledTime) {
+        throw new UnsupportedOperationException();
+    }
 }
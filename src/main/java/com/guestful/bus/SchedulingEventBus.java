@@ -15,6 +15,8 @@
  */
 package com.guestful.bus;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.stream.Stream;
@@ -32,6 +34,11 @@ public class SchedulingEventBus implements EventBus {
         this.scheduler = scheduler;
     }
 
+    @Override
+    public Collection<Class<?>> getAcceptedTypes() {
+        return Collections.singleton(ScheduledEvent.class);
+    }
+
     @Override
     public void post(Stream<? extends Event> eventStream) {
         scheduler.schedule(eventStream
@@ -0,0 +1,87 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs tasks on an executor, one after another for tasks of the same key, in submission order. Keys are hashed on a
+ * fixed number of stripes, so unrelated keys sharing a stripe are also ordered.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+class StripedExecutor {
+
+    private final Stripe[] stripes;
+
+    StripedExecutor(Executor executor, int stripeCount) {
+        if (stripeCount < 1) throw new IllegalArgumentException("stripeCount: " + stripeCount);
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(executor);
+        }
+    }
+
+    void execute(Object key, Runnable task) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        stripes[(h & 0x7FFFFFFF) % stripes.length].execute(task);
+    }
+
+    private static class Stripe implements Runnable {
+
+        private final Executor executor;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+
+        Stripe(Executor executor) {
+            this.executor = executor;
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            schedule();
+        }
+
+        private void schedule() {
+            if (!tasks.isEmpty() && scheduled.compareAndSet(false, true)) {
+                try {
+                    BoundedExecutor.executeAccepted(executor, this);
+                } catch (RuntimeException e) {
+                    scheduled.set(false);
+                    throw e;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+            } finally {
+                scheduled.set(false);
+                schedule();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.lang.annotation.*;
+
+/**
+ * Marks the methods of a handler receiving the events posted on a {@link LocalEventBus}. The method must have a single
+ * parameter: the type of the events it receives, sub-types included.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Subscribe {
+
+    /**
+     * @return maximum number of concurrent calls of the method, 0 for no limit. Events waiting for a call do not hold
+     * a thread of the bus executor.
+     */
+    int maxConcurrency() default 0;
+
+}
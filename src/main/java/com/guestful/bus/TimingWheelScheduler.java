@@ -0,0 +1,424 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+
+/**
+ * In-memory scheduler backed by a hierarchical timing wheel: scheduling and firing a timer are constant time operations
+ * whatever the number of pending timers, and timers fire with the precision of the wheel tick (1 millisecond by default).
+ * <p>
+ * A ticker thread started by {@link #init()} only wakes up when a wheel bucket expires. Pending timers are lost when the
+ * JVM stops: set a persistent scheduler, such as a {@link MongoScheduler}, to hand it the events scheduled further than a
+ * given horizon, so that only short-lived timers stay in memory and never touch the database.
+ * <p>
+ * Keyed timers are indexed by {@link ScheduledEvent#getKey() key}: scheduling, cancelling or rescheduling them is done in
+ * constant time by unlinking the previous timer from its bucket. A keyed event handed to the persistent scheduler removes
+ * the timer of the same key, and a keyed timer kept in memory cancels the persisted event of the same key, so that a key
+ * is only pending once across both. Only the keys this scheduler recently handed to the persistent scheduler are
+ * cancelled this way: keys persisted by other nodes or before a restart are only cancelled by
+ * {@link #cancel(String)} and {@link #reschedule(String, Date)}.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class TimingWheelScheduler implements Scheduler {
+
+    private static final Logger LOGGER = Logger.getLogger(TimingWheelScheduler.class.getName());
+
+    private final EventBus eventBus;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final DelayQueue<Bucket> buckets = new DelayQueue<>();
+    private final Wheel wheel;
+    private final Map<String, Timer> timersByKey = new HashMap<>();
+    private final Map<String, Long> persistedKeys = new HashMap<>();
+    private int pruneThreshold = 1024;
+    private Scheduler persistentScheduler;
+    private long horizon = Long.MAX_VALUE;
+    private Thread ticker;
+
+    public TimingWheelScheduler(EventBus eventBus) {
+        this(eventBus, 1, TimeUnit.MILLISECONDS, 512);
+    }
+
+    /**
+     * @param tick      duration of the smallest wheel bucket: the firing precision
+     * @param wheelSize number of buckets per wheel. Each overflow wheel covers wheelSize times the span of the previous one.
+     */
+    public TimingWheelScheduler(EventBus eventBus, long tick, TimeUnit unit, int wheelSize) {
+        if (unit.toMillis(tick) < 1 || wheelSize < 2) throw new IllegalArgumentException("tick: " + tick + " " + unit + ", wheelSize: " + wheelSize);
+        this.eventBus = eventBus;
+        this.wheel = new Wheel(unit.toMillis(tick), wheelSize, System.currentTimeMillis());
+    }
+
+    /**
+     * @param persistentScheduler scheduler receiving the events scheduled more than the horizon in the future
+     */
+    public void setPersistentScheduler(Scheduler persistentScheduler, long horizon, TimeUnit unit) {
+        this.persistentScheduler = persistentScheduler;
+        this.horizon = unit.toMillis(horizon);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (ticker == null) {
+            ticker = new Thread(TimingWheelScheduler.class.getSimpleName() + "-Ticker") {
+                @Override
+                public void run() {
+                    while (!Thread.currentThread().isInterrupted() && ticker == this) {
+                        try {
+                            Bucket bucket = buckets.poll(1, TimeUnit.SECONDS);
+                            if (bucket != null) {
+                                fire(advance(bucket));
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        } catch (Exception e) {
+                            LOGGER.log(Level.SEVERE, "Ticker error: " + e.getMessage(), e);
+                        }
+                    }
+                }
+            };
+            ticker.start();
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        Thread ticker = this.ticker;
+        if (ticker != null) {
+            this.ticker = null;
+            ticker.interrupt();
+        }
+    }
+
+    @Override
+    public void schedule(Stream<ScheduledEvent> scheduledEvents) {
+        List<ScheduledEvent> persistent = new ArrayList<>();
+        List<String> keptInMemory = new ArrayList<>();
+        List<Timer> expired = new ArrayList<>();
+        long limit = horizon == Long.MAX_VALUE ? Long.MAX_VALUE : System.currentTimeMillis() + horizon;
+        scheduledEvents.forEach(scheduledEvent -> {
+            String key = scheduledEvent.getKey();
+            boolean beyondHorizon = persistentScheduler != null && scheduledEvent.getScheduledTime().getTime() > limit;
+            if (beyondHorizon) {
+                persistent.add(scheduledEvent);
+            }
+            if (!beyondHorizon || key != null) {
+                lock.lock();
+                try {
+                    if (beyondHorizon) {
+                        // the persisted event replaces the timer of the same key
+                        remove(key);
+                        persisted(key, scheduledEvent.getScheduledTime().getTime());
+                    } else {
+                        add(new Timer(scheduledEvent), expired);
+                        if (key != null && persistedKeys.remove(key) != null) {
+                            keptInMemory.add(key);
+                        }
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+        if (!persistent.isEmpty()) {
+            persistentScheduler.schedule(persistent.stream());
+        }
+        for (String key : keptInMemory) {
+            // the timer replaces the persisted event of the same key
+            persistentScheduler.cancel(key);
+        }
+        fire(expired);
+    }
+
+    /**
+     * Cancels the timer of the given key in O(1), or forwards the cancellation to the persistent scheduler when the timer
+     * is not in memory.
+     */
+    @Override
+    public void cancel(String key) {
+        Timer timer;
+        lock.lock();
+        try {
+            timer = remove(key);
+            persistedKeys.remove(key);
+        } finally {
+            lock.unlock();
+        }
+        if (timer == null && persistentScheduler != null) {
+            persistentScheduler.cancel(key);
+        }
+    }
+
+    @Override
+    public void reschedule(String key, Date scheduledTime) {
+        Timer timer;
+        lock.lock();
+        try {
+            timer = remove(key);
+            persistedKeys.computeIfPresent(key, (k, time) -> scheduledTime.getTime());
+        } finally {
+            lock.unlock();
+        }
+        if (timer == null) {
+            if (persistentScheduler != null) {
+                persistentScheduler.reschedule(key, scheduledTime);
+            }
+        } else {
+            timer.scheduledEvent.setScheduledTime(scheduledTime);
+            schedule(Stream.of(timer.scheduledEvent));
+        }
+    }
+
+    /**
+     * Fires the due timers from the calling thread. Not needed when the ticker thread is started.
+     */
+    @Override
+    public void produce() {
+        Bucket bucket = buckets.poll();
+        if (bucket != null) {
+            fire(advance(bucket));
+        }
+    }
+
+    /**
+     * Advances the wheel clock to the expiration of the given bucket and of all the other expired buckets, then moves
+     * their timers to lower wheels.
+     *
+     * @return the timers to fire
+     */
+    private List<Timer> advance(Bucket bucket) {
+        List<Timer> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            while (bucket != null) {
+                wheel.advanceClock(bucket.getExpiration());
+                bucket.flush(timer -> add(timer, expired));
+                bucket = buckets.poll();
+            }
+        } finally {
+            lock.unlock();
+        }
+        return expired;
+    }
+
+    /**
+     * Adds a timer to the wheel, replacing the pending timer of the same key. Must be called with the lock held.
+     */
+    private void add(Timer timer, List<Timer> expired) {
+        String key = timer.scheduledEvent.getKey();
+        if (key != null) {
+            Timer previous = timersByKey.put(key, timer);
+            if (previous != null && previous != timer && previous.bucket != null) {
+                previous.bucket.remove(previous);
+            }
+        }
+        if (!wheel.add(timer)) {
+            if (key != null) {
+                timersByKey.remove(key, timer);
+            }
+            expired.add(timer);
+        }
+    }
+
+    /**
+     * Remembers a key handed to the persistent scheduler until its event is due. Keys of the events already due are
+     * pruned each time the number of remembered keys doubles. Must be called with the lock held.
+     */
+    private void persisted(String key, long scheduledTime) {
+        if (key == null) return;
+        persistedKeys.put(key, scheduledTime);
+        if (persistedKeys.size() >= pruneThreshold) {
+            long now = System.currentTimeMillis();
+            persistedKeys.values().removeIf(time -> time <= now);
+            pruneThreshold = Math.max(1024, persistedKeys.size() * 2);
+        }
+    }
+
+    /**
+     * Removes the pending timer of the given key. Must be called with the lock held.
+     */
+    private Timer remove(String key) {
+        Timer timer = timersByKey.remove(key);
+        if (timer != null && timer.bucket != null) {
+            timer.bucket.remove(timer);
+        }
+        return timer;
+    }
+
+    private void fire(List<Timer> timers) {
+        for (Timer timer : timers) {
+            if (LOGGER.isLoggable(Level.FINEST)) {
+                LOGGER.finest("Firing " + timer.scheduledEvent);
+            }
+            try {
+                eventBus.post(timer.scheduledEvent.getScheduledEvent());
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "Error firing event: " + e.getMessage() + ". Event: " + timer.scheduledEvent, e);
+            }
+        }
+    }
+
+    private static class Timer {
+
+        private final ScheduledEvent scheduledEvent;
+        private final long expiration;
+        private Bucket bucket;
+        private Timer prev;
+        private Timer next;
+
+        Timer(ScheduledEvent scheduledEvent) {
+            this.scheduledEvent = scheduledEvent;
+            this.expiration = scheduledEvent.getScheduledTime().getTime();
+        }
+
+        Timer() {
+            this.scheduledEvent = null;
+            this.expiration = 0;
+        }
+    }
+
+    /**
+     * Doubly linked list of timers expiring in the same tick of a wheel
+     */
+    private static class Bucket implements Delayed {
+
+        private final Timer root = new Timer();
+        private long expiration = -1;
+
+        Bucket() {
+            root.prev = root;
+            root.next = root;
+        }
+
+        void add(Timer timer) {
+            timer.bucket = this;
+            timer.next = root;
+            timer.prev = root.prev;
+            root.prev.next = timer;
+            root.prev = timer;
+        }
+
+        void remove(Timer timer) {
+            timer.prev.next = timer.next;
+            timer.next.prev = timer.prev;
+            timer.prev = null;
+            timer.next = null;
+            timer.bucket = null;
+        }
+
+        void flush(Consumer<Timer> consumer) {
+            Timer timer = root.next;
+            while (timer != root) {
+                Timer next = timer.next;
+                remove(timer);
+                consumer.accept(timer);
+                timer = next;
+            }
+            expiration = -1;
+        }
+
+        /**
+         * @return true if the expiration changed, meaning that the bucket has to be queued again
+         */
+        boolean setExpiration(long expiration) {
+            if (this.expiration == expiration) return false;
+            this.expiration = expiration;
+            return true;
+        }
+
+        long getExpiration() {
+            return expiration;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(expiration - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return Long.compare(expiration, ((Bucket) o).expiration);
+        }
+    }
+
+    private class Wheel {
+
+        private final long tick;
+        private final int size;
+        private final long span;
+        private final Bucket[] buckets;
+        private long currentTime;
+        private Wheel overflow;
+
+        Wheel(long tick, int size, long startTime) {
+            this.tick = tick;
+            this.size = size;
+            this.span = tick * size;
+            this.buckets = new Bucket[size];
+            for (int i = 0; i < size; i++) {
+                buckets[i] = new Bucket();
+            }
+            this.currentTime = startTime - startTime % tick;
+        }
+
+        /**
+         * @return false if the timer is already expired
+         */
+        boolean add(Timer timer) {
+            if (timer.expiration < currentTime + tick) {
+                return false;
+            }
+            if (timer.expiration < currentTime + span) {
+                long virtualId = timer.expiration / tick;
+                Bucket bucket = buckets[(int) (virtualId % size)];
+                bucket.add(timer);
+                if (bucket.setExpiration(virtualId * tick)) {
+                    TimingWheelScheduler.this.buckets.offer(bucket);
+                }
+                return true;
+            }
+            if (overflow == null) {
+                overflow = new Wheel(span, size, currentTime);
+            }
+            return overflow.add(timer);
+        }
+
+        void advanceClock(long time) {
+            if (time >= currentTime + tick) {
+                currentTime = time - time % tick;
+                if (overflow != null) {
+                    overflow.advanceClock(currentTime);
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Type header written before the events encoded with an {@link EventCodec}, the same for all transports: the type id
+ * given by the codec as an unsigned varint (the encoding of Kryo's {@code writeVarInt(value, true)}), followed, when
+ * the codec has no id for the type, by the event type name as a varint length and its UTF-8 bytes.
+ *
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+final class TypeHeader {
+
+    private TypeHeader() {
+    }
+
+    static void write(OutputStream out, EventCodec codec, Class<? extends Event> type) throws IOException {
+        int typeId = codec.getTypeId(type);
+        writeVarInt(out, typeId);
+        if (typeId == 0) {
+            byte[] name = EventMetadata.of(type).getTypeId().getBytes(StandardCharsets.UTF_8);
+            writeVarInt(out, name.length);
+            out.write(name);
+        }
+    }
+
+    /**
+     * @return the type id, 0 meaning that the type name follows and is read with {@link #readName(InputStream)}
+     */
+    static int readTypeId(InputStream in) throws IOException {
+        return readVarInt(in);
+    }
+
+    static String readName(InputStream in) throws IOException {
+        byte[] name = new byte[readVarInt(in)];
+        for (int pos = 0, n; pos < name.length; pos += n) {
+            if ((n = in.read(name, pos, name.length - pos)) < 0) {
+                throw new EOFException();
+            }
+        }
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static void writeVarInt(OutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+}
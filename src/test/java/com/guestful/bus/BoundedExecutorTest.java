@@ -0,0 +1,345 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class BoundedExecutorTest {
+
+    private final ManualExecutor threads = new ManualExecutor();
+    private final List<String> runs = new ArrayList<>();
+
+    @Test
+    public void runs_queued_tasks_by_priority_then_submission_order() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 10, DispatchPolicy.DROP);
+        executor.setPriority(Urgent.class, 10);
+        executor.execute(new Normal(), () -> runs.add("normal-1"));
+        executor.execute(new Urgent(), () -> runs.add("urgent-1"));
+        executor.execute(new Normal(), () -> runs.add("normal-2"));
+        executor.execute(new Urgent(), () -> runs.add("urgent-2"));
+        assertEquals(4, executor.getQueueSize());
+        assertEquals(1, threads.pending());
+
+        threads.runAll();
+
+        assertEquals("[urgent-1, urgent-2, normal-1, normal-2]", runs.toString());
+        assertEquals(0, executor.getQueueSize());
+    }
+
+    @Test
+    public void uses_at_most_parallelism_threads() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 2, 10, DispatchPolicy.DROP);
+        for (int i = 0; i < 5; i++) {
+            executor.execute(new Normal(), () -> runs.add("task"));
+        }
+        assertEquals(2, threads.pending());
+        threads.runAll();
+        assertEquals(5, runs.size());
+    }
+
+    @Test
+    public void drop_discards_new_events_when_full() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 2, DispatchPolicy.DROP);
+        for (int i = 0; i < 5; i++) {
+            int n = i;
+            executor.execute(new Normal(), () -> runs.add("event-" + n));
+        }
+        assertEquals(3, executor.getRejected());
+
+        threads.runAll();
+
+        assertEquals("[event-0, event-1]", runs.toString());
+    }
+
+    @Test
+    public void shed_discards_lower_priority_events_first() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 2, DispatchPolicy.SHED);
+        executor.setPriority(Urgent.class, 10);
+        executor.execute(new Normal(), () -> runs.add("normal-1"));
+        executor.execute(new Normal(), () -> runs.add("normal-2"));
+        executor.execute(new Urgent(), () -> runs.add("urgent-1"));
+        executor.execute(new Urgent(), () -> runs.add("urgent-2"));
+        executor.execute(new Urgent(), () -> runs.add("urgent-3"));
+        executor.execute(new Normal(), () -> runs.add("normal-3"));
+        assertEquals(4, executor.getRejected());
+
+        threads.runAll();
+
+        assertEquals("[urgent-1, urgent-2]", runs.toString());
+    }
+
+    @Test
+    public void caller_runs_when_full() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 1, DispatchPolicy.CALLER_RUNS);
+        executor.execute(new Normal(), () -> runs.add("queued"));
+        executor.execute(new Normal(), () -> runs.add("caller-" + Thread.currentThread().getName()));
+
+        assertEquals("[caller-" + Thread.currentThread().getName() + "]", runs.toString());
+        assertEquals(1, executor.getCallerRuns());
+        threads.runAll();
+        assertEquals(2, runs.size());
+    }
+
+    @Test
+    public void block_rejects_after_the_timeout() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 1, DispatchPolicy.BLOCK);
+        executor.setBlockTimeout(50, TimeUnit.MILLISECONDS);
+        executor.execute(new Normal(), () -> runs.add("queued"));
+        long start = System.nanoTime();
+        try {
+            executor.execute(new Normal(), () -> runs.add("blocked"));
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(1, executor.getRejected());
+    }
+
+    @Test
+    public void block_waits_for_room() throws Exception {
+        ExecutorService pool = Executors.newSingleThreadExecutor();
+        try {
+            BoundedExecutor executor = new BoundedExecutor(pool, 1, 1, DispatchPolicy.BLOCK);
+            executor.setBlockTimeout(10, TimeUnit.SECONDS);
+            AtomicInteger handled = new AtomicInteger();
+            for (int i = 0; i < 20; i++) {
+                executor.execute(new Normal(), () -> {
+                    try {
+                        Thread.sleep(2);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.incrementAndGet();
+                });
+            }
+            pool.shutdown();
+            assertTrue(pool.awaitTermination(10, TimeUnit.SECONDS));
+            assertEquals(20, handled.get());
+            assertEquals(0, executor.getRejected());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void runs_plain_tasks_first() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 10, DispatchPolicy.DROP);
+        executor.execute(new Normal(), () -> runs.add("event"));
+        executor.execute(() -> runs.add("task-1"));
+        executor.execute(() -> runs.add("task-2"));
+        assertEquals(3, executor.getQueueSize());
+
+        threads.runAll();
+        assertEquals("[task-1, task-2, event]", runs.toString());
+    }
+
+    @Test
+    public void rejects_plain_tasks_when_full_instead_of_dropping_them() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 1, DispatchPolicy.DROP);
+        executor.execute(new Normal(), () -> runs.add("event"));
+        try {
+            executor.execute(() -> runs.add("task"));
+            fail();
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, executor.getRejected());
+
+        threads.runAll();
+        assertEquals("[event]", runs.toString());
+    }
+
+    @Test
+    public void always_queues_accepted_tasks_first() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 1, DispatchPolicy.DROP);
+        executor.execute(new Normal(), () -> runs.add("event"));
+        executor.executeAccepted(() -> runs.add("drain-1"));
+        executor.executeAccepted(() -> runs.add("drain-2"));
+        assertEquals(3, executor.getQueueSize());
+        assertEquals(0, executor.getRejected());
+
+        executor.execute(new Normal(), () -> runs.add("dropped"));
+        assertEquals(1, executor.getRejected());
+
+        threads.runAll();
+        assertEquals("[drain-1, drain-2, event]", runs.toString());
+    }
+
+    @Test
+    public void counts_the_tasks_waiting_in_stacked_limits_against_the_capacity() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 3, DispatchPolicy.DROP);
+        Executor limited = new LimitedExecutor(executor, 1);
+        for (int i = 0; i < 3; i++) {
+            int n = i;
+            limited.execute(() -> runs.add("limited-" + n));
+        }
+        // the 3 waiting tasks and the drain of the limit
+        assertEquals(4, executor.getQueueSize());
+
+        executor.execute(new Normal(), () -> runs.add("dropped"));
+        assertEquals(1, executor.getRejected());
+
+        threads.runAll();
+        assertEquals("[limited-0, limited-1, limited-2]", runs.toString());
+        assertEquals(0, executor.getQueueSize());
+        executor.execute(new Normal(), () -> runs.add("event"));
+        assertEquals(1, executor.getRejected());
+    }
+
+    @Test
+    public void stacked_limits_never_lose_or_duplicate_tasks() {
+        BoundedExecutor executor = new BoundedExecutor(threads, 1, 1, DispatchPolicy.DROP);
+        Executor limited = new LimitedExecutor(executor, 1);
+        executor.execute(new Normal(), () -> runs.add("event"));
+        for (int i = 0; i < 3; i++) {
+            int n = i;
+            limited.execute(() -> runs.add("limited-" + n));
+        }
+
+        threads.runAll();
+
+        assertEquals("[limited-0, limited-1, limited-2, event]", runs.toString());
+    }
+
+    @Test
+    public void local_event_bus_sheds_an_event_for_all_its_handlers_or_none() throws Exception {
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        try {
+            BoundedExecutor executor = new BoundedExecutor(single, 1, 2, DispatchPolicy.DROP);
+            AtomicInteger errors = new AtomicInteger();
+            LocalEventBus bus = new LocalEventBus(executor, (event, e) -> errors.incrementAndGet());
+            AtomicInteger first = new AtomicInteger();
+            AtomicInteger second = new AtomicInteger();
+            bus.register(new Object() {
+                @Subscribe
+                public void on(Normal event) throws InterruptedException {
+                    Thread.sleep(1);
+                    first.incrementAndGet();
+                }
+
+                @Subscribe(maxConcurrency = 1)
+                public void on(Event event) {
+                    second.incrementAndGet();
+                }
+            });
+
+            for (int i = 0; i < 200; i++) {
+                bus.post(new Normal());
+            }
+            single.shutdown();
+            assertTrue(single.awaitTermination(10, TimeUnit.SECONDS));
+
+            assertTrue(executor.getRejected() > 0);
+            assertEquals(200 - executor.getRejected(), first.get());
+            assertEquals(first.get(), second.get());
+            assertEquals(0, errors.get());
+        } finally {
+            single.shutdownNow();
+        }
+    }
+
+    @Test
+    public void local_event_bus_bounds_the_events_waiting_for_a_slow_serial_handler() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            BoundedExecutor executor = new BoundedExecutor(pool, 4, 10, DispatchPolicy.DROP);
+            AtomicInteger errors = new AtomicInteger();
+            LocalEventBus bus = new LocalEventBus(executor, (event, e) -> errors.incrementAndGet());
+            SlowSerialHandler handler = new SlowSerialHandler();
+            bus.register(handler);
+
+            // posted slower than dispatched, but faster than handled
+            int maxQueueSize = 0;
+            for (int i = 0; i < 300; i++) {
+                bus.post(new Normal());
+                maxQueueSize = Math.max(maxQueueSize, executor.getQueueSize());
+                Thread.sleep(1);
+            }
+
+            assertTrue(executor.getRejected() > 0);
+            // the capacity, and the drain of the limit of the handler
+            assertTrue("queue size: " + maxQueueSize, maxQueueSize <= 11);
+            long end = System.currentTimeMillis() + 10000;
+            while (handler.handled.get() + executor.getRejected() < 300 && System.currentTimeMillis() < end) {
+                Thread.sleep(10);
+            }
+            assertEquals(300 - executor.getRejected(), handler.handled.get());
+            assertEquals(0, executor.getQueueSize());
+            assertEquals(0, errors.get());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Guava subscriber without {@code @AllowConcurrentEvents}: called one event at a time
+     */
+    public static class SlowSerialHandler {
+
+        final AtomicInteger handled = new AtomicInteger();
+
+        @com.google.common.eventbus.Subscribe
+        public void on(Normal event) throws InterruptedException {
+            Thread.sleep(5);
+            handled.incrementAndGet();
+        }
+    }
+
+    public static class Normal extends Event {
+    }
+
+    public static class Urgent extends Event {
+    }
+
+    /**
+     * Runs the submitted tasks when told to, so that the queue of the bounded executor can be filled
+     */
+    private static class ManualExecutor implements Executor {
+
+        private final Queue<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable task) {
+            tasks.add(task);
+        }
+
+        int pending() {
+            return tasks.size();
+        }
+
+        void runAll() {
+            for (Runnable task; (task = tasks.poll()) != null; ) {
+                task.run();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class CompressionTest {
+
+    @Test
+    public void round_trips_payloads_above_the_threshold() {
+        Compression compression = new Compression(64);
+        byte[] payload = payload(3, 10000);
+
+        byte[] compressed = compression.compress(payload);
+
+        assertTrue(Compression.isCompressed(compressed));
+        assertTrue(compressed.length < payload.length);
+        assertArrayEquals(payload, Compression.decompress(compressed));
+        assertEquals(1, compression.getCompressedPayloads());
+        assertEquals((double) compressed.length / payload.length, compression.getCompressionRatio(), 0.0001);
+        assertTrue(compression.getCompressionTime(TimeUnit.NANOSECONDS) > 0);
+    }
+
+    @Test
+    public void round_trips_with_reused_thread_buffers() {
+        Compression compression = new Compression(16);
+        for (int size : new int[]{20000, 100, 50000, 17}) {
+            byte[] payload = payload(2, size);
+            byte[] compressed = compression.compress(payload);
+            assertArrayEquals(payload, Compression.isCompressed(compressed) ? Compression.decompress(compressed) : compressed);
+        }
+    }
+
+    @Test
+    public void leaves_payloads_below_the_threshold_unchanged() {
+        Compression compression = new Compression(1024);
+        byte[] payload = payload(2, 1023);
+
+        assertSame(payload, compression.compress(payload));
+        assertFalse(Compression.isCompressed(payload));
+        assertEquals(0, compression.getCompressedPayloads());
+        assertEquals(1, compression.getCompressionRatio(), 0);
+    }
+
+    @Test
+    public void leaves_incompressible_payloads_unchanged() {
+        Compression compression = new Compression(16);
+        byte[] payload = new byte[4096];
+        new Random(42).nextBytes(payload);
+        payload[0] = 3;
+
+        assertSame(payload, compression.compress(payload));
+        assertEquals(0, compression.getCompressedPayloads());
+    }
+
+    @Test
+    public void keeps_the_first_byte_readable() {
+        Compression compression = new Compression(16);
+        byte[] payload = payload(0x7F, 1000);
+
+        byte[] compressed = compression.compress(payload);
+
+        assertEquals(0x7F, compressed[0] & 0x7F);
+        assertEquals(0x7F, Compression.decompress(compressed)[0]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_truncated_payloads() {
+        byte[] compressed = new Compression(16).compress(payload(2, 10000));
+        Compression.decompress(Arrays.copyOf(compressed, compressed.length / 2));
+    }
+
+    @Test
+    public void rejects_sizes_above_the_maximum_before_allocating() {
+        byte[] compressed = new Compression(16).compress(payload(2, 10000));
+        assertEquals(10000, Compression.decompress(compressed, 10000).length);
+        try {
+            Compression.decompress(compressed, 9999);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("9999"));
+        }
+    }
+
+    @Test
+    public void rejects_sizes_deflate_cannot_reach_from_the_payload() {
+        // 5 deflated bytes claiming to uncompress to 100000 bytes, below the maximum
+        byte[] forged = {(byte) 0x82, 0, 1, (byte) 0x86, (byte) 0xA0, 1, 2, 3, 4, 5};
+        try {
+            Compression.decompress(forged);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("100000"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_negative_sizes() {
+        Compression.decompress(new byte[]{(byte) 0x82, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 1, 2, 3, 4, 5});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_payloads_without_size() {
+        Compression.decompress(new byte[]{(byte) 0x82, 0, 0});
+    }
+
+    private static byte[] payload(int format, int size) {
+        byte[] payload = new byte[size];
+        byte[] text = "{\"eventType\":\"ReservationCreated\",\"restaurant\":\"guestful\"}".getBytes(StandardCharsets.UTF_8);
+        for (int i = 1; i < size; i++) {
+            payload[i] = text[i % text.length];
+        }
+        payload[0] = (byte) format;
+        return payload;
+    }
+
+}
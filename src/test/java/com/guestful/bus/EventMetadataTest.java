@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class EventMetadataTest {
+
+    @Test
+    public void invalidating_the_routes_changes_the_version_and_notifies_the_listeners() {
+        AtomicInteger calls = new AtomicInteger();
+        Runnable listener = calls::incrementAndGet;
+        EventMetadata.addRoutesListener(listener);
+        try {
+            long version = EventMetadata.getRoutesVersion();
+
+            EventMetadata.invalidateRoutes();
+
+            assertTrue(EventMetadata.getRoutesVersion() > version);
+            assertEquals(1, calls.get());
+        } finally {
+            EventMetadata.removeRoutesListener(listener);
+        }
+        EventMetadata.invalidateRoutes();
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void a_failing_listener_does_not_prevent_the_others_from_being_notified() {
+        AtomicInteger calls = new AtomicInteger();
+        Runnable failing = () -> {
+            throw new IllegalStateException("failed");
+        };
+        Runnable listener = calls::incrementAndGet;
+        EventMetadata.addRoutesListener(failing);
+        EventMetadata.addRoutesListener(listener);
+        try {
+            EventMetadata.invalidateRoutes();
+
+            assertEquals(1, calls.get());
+        } finally {
+            EventMetadata.removeRoutesListener(failing);
+            EventMetadata.removeRoutesListener(listener);
+        }
+    }
+
+    @Test
+    public void does_not_keep_the_listeners_of_buses_never_closed_reachable() throws Exception {
+        Object bus = new Object();
+        WeakReference<Object> collected = new WeakReference<>(bus);
+        EventMetadata.addRoutesListener(bus::hashCode);
+        bus = null;
+
+        for (int i = 0; i < 100 && collected.get() != null; i++) {
+            System.gc();
+            Thread.sleep(10);
+        }
+
+        assertNull(collected.get());
+        EventMetadata.invalidateRoutes();
+    }
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.google.common.eventbus.DeadEvent;
+import com.google.common.eventbus.Subscribe;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class GuavaEventBusTest {
+
+    private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+    private final GuavaEventBus bus = new GuavaEventBus(Runnable::run, (e, context) -> errors.add(e));
+
+    @Test
+    public void accepts_the_types_of_the_subscribers_and_their_sub_types() {
+        assertFalse(bus.accepts(Created.class));
+
+        bus.register(new AuditSubscriber());
+
+        assertTrue(bus.accepts(Created.class));
+        assertTrue(bus.accepts(Deleted.class));
+        assertFalse(bus.accepts(Other.class));
+        assertEquals(Collections.singletonList(Audited.class), bus.getAcceptedTypes());
+    }
+
+    @Test
+    public void accepts_the_types_of_subscribers_declared_in_super_classes() {
+        bus.register(new InheritedSubscriber());
+
+        assertTrue(bus.accepts(Created.class));
+        assertEquals(new HashSet<>(Collections.singletonList(Created.class)), new HashSet<>(bus.getAcceptedTypes()));
+    }
+
+    @Test
+    public void stops_accepting_the_types_of_unregistered_subscribers() {
+        AuditSubscriber subscriber = new AuditSubscriber();
+        bus.register(subscriber);
+        assertTrue(bus.accepts(Created.class));
+
+        bus.unregister(subscriber);
+
+        assertFalse(bus.accepts(Created.class));
+        assertTrue(bus.getAcceptedTypes().isEmpty());
+    }
+
+    @Test
+    public void keeps_accepting_types_still_subscribed_to() {
+        AuditSubscriber first = new AuditSubscriber();
+        bus.register(first, new AuditSubscriber());
+
+        bus.unregister(first);
+
+        assertTrue(bus.accepts(Created.class));
+    }
+
+    @Test
+    public void accepts_all_events_once_a_dead_event_subscriber_is_registered() {
+        DeadEventSubscriber dead = new DeadEventSubscriber();
+        bus.register(new AuditSubscriber(), dead);
+
+        assertTrue(bus.accepts(Other.class));
+        assertEquals(Collections.singleton(Event.class), bus.getAcceptedTypes());
+
+        Other other = new Other();
+        bus.post(new Created(), other);
+
+        assertEquals(1, dead.events.size());
+        assertSame(other, dead.events.get(0).getEvent());
+        assertTrue(errors.isEmpty());
+    }
+
+    public static class Audited extends Event {
+    }
+
+    public static class Created extends Audited {
+    }
+
+    public static class Deleted extends Audited {
+    }
+
+    public static class Other extends Event {
+    }
+
+    public static class AuditSubscriber {
+
+        final List<Audited> events = new CopyOnWriteArrayList<>();
+
+        @Subscribe
+        public void on(Audited event) {
+            events.add(event);
+        }
+    }
+
+    public static class CreatedSubscriber {
+
+        @Subscribe
+        public void on(Created event) {
+        }
+    }
+
+    public static class InheritedSubscriber extends CreatedSubscriber {
+    }
+
+    public static class DeadEventSubscriber {
+
+        final List<DeadEvent> events = new CopyOnWriteArrayList<>();
+
+        @Subscribe
+        public void on(DeadEvent event) {
+            events.add(event);
+        }
+    }
+
+}
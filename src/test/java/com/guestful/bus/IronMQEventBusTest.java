@@ -0,0 +1,259 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class IronMQEventBusTest {
+
+    private final List<Offer> offers = Collections.synchronizedList(new ArrayList<>());
+    private final ExecutorService pool = Executors.newFixedThreadPool(4);
+    private IronMQEventBus bus;
+
+    @After
+    public void tearDown() {
+        if (bus != null) {
+            bus.close();
+        }
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void offers_chunks_respecting_the_max_chunk_size() {
+        bus = bus(this::record, null);
+        bus.setMaxChunkSize(100);
+
+        bus.post(orders(250));
+
+        assertEquals(3, offers.size());
+        assertEquals(100, offers.get(0).size);
+        assertEquals(100, offers.get(1).size);
+        assertEquals(50, offers.get(2).size);
+        assertTrue(offers.stream().allMatch(offer -> offer.queue.equals("events.Order")));
+    }
+
+    @Test
+    public void offers_each_queue_its_own_messages() {
+        bus = bus(this::record, null);
+
+        bus.post(Stream.concat(orders(3).stream(), Stream.of(new Invoice(), new NotQueued(), new Invoice())));
+
+        assertEquals(2, offers.size());
+        assertEquals(3, offers.stream().filter(offer -> offer.queue.equals("events.Order")).findFirst().get().size);
+        assertEquals(2, offers.stream().filter(offer -> offer.queue.equals("billing")).findFirst().get().size);
+    }
+
+    @Test
+    public void offers_the_message_bodies_through_the_rest_client_of_the_consumers() throws Exception {
+        List<String> bodies = new ArrayList<>();
+        IronMQRestClient client = new IronMQRestClient("localhost", "project", "token") {
+            @Override
+            public void post(String queue, Collection<String> messages) {
+                assertEquals("billing", queue);
+                bodies.addAll(messages);
+            }
+        };
+        bus = new IronMQEventBus(client, null, null);
+        bus.setCodec(new NameCodec());
+
+        bus.post(new Invoice(), new Invoice());
+
+        assertEquals(2, bodies.size());
+        JsonObject body = Json.createReader(new StringReader(bodies.get(0))).readObject();
+        assertEquals("Invoice", body.getString("eventType"));
+        assertEquals("name", body.getString("codec"));
+    }
+
+    @Test
+    public void offers_chunks_in_parallel_with_an_executor() throws Exception {
+        CountDownLatch allStarted = new CountDownLatch(3);
+        Set<String> threads = ConcurrentHashMap.newKeySet();
+        bus = bus((queue, chunk) -> {
+            threads.add(Thread.currentThread().getName());
+            allStarted.countDown();
+            try {
+                // chunks offered one after another would wait here forever
+                assertTrue(allStarted.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            record(queue, chunk);
+        }, pool);
+        bus.setMaxChunkSize(10);
+
+        bus.postAsync(Stream.concat(orders(20).stream(), Stream.of(new Invoice()))).get(10, TimeUnit.SECONDS);
+
+        assertEquals(3, offers.size());
+        assertEquals(3, threads.size());
+    }
+
+    @Test
+    public void coalesces_messages_posted_within_the_linger_time() throws Exception {
+        bus = bus(this::record, null);
+        bus.setLinger(100, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Void> first = bus.postAsync(orders(2).stream());
+        CompletableFuture<Void> second = bus.postAsync(orders(3).stream());
+        assertTrue(offers.isEmpty());
+
+        CompletableFuture.allOf(first, second).get(5, TimeUnit.SECONDS);
+        assertEquals(1, offers.size());
+        assertEquals(5, offers.get(0).size);
+    }
+
+    @Test
+    public void offers_lingering_messages_once_a_chunk_is_full() throws Exception {
+        bus = bus(this::record, null);
+        bus.setLinger(1, TimeUnit.HOURS);
+        bus.setMaxChunkSize(4);
+
+        bus.postAsync(orders(2).stream());
+        bus.postAsync(orders(2).stream()).get(5, TimeUnit.SECONDS);
+
+        assertEquals(1, offers.size());
+        assertEquals(4, offers.get(0).size);
+    }
+
+    @Test
+    public void close_offers_lingering_messages() {
+        bus = bus(this::record, null);
+        bus.setLinger(1, TimeUnit.HOURS);
+        CompletableFuture<Void> future = bus.postAsync(orders(3).stream());
+
+        bus.close();
+
+        assertTrue(future.isDone());
+        assertEquals(1, offers.size());
+        assertEquals(3, offers.get(0).size);
+    }
+
+    @Test
+    public void post_throws_the_offer_exception_without_executor() {
+        bus = bus((queue, chunk) -> {
+            throw new IllegalStateException("IronMQ down");
+        }, null);
+        try {
+            bus.post(new Invoice());
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("IronMQ down", e.getMessage());
+        }
+    }
+
+    @Test
+    public void post_async_fails_when_a_chunk_cannot_be_offered() throws Exception {
+        bus = bus((queue, chunk) -> {
+            if (queue.equals("billing")) {
+                throw new IllegalStateException("IronMQ down");
+            }
+            record(queue, chunk);
+        }, pool);
+
+        CompletableFuture<Void> future = bus.postAsync(Stream.of(new Order(), new Invoice()));
+        try {
+            future.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("IronMQ down", e.getCause().getMessage());
+        }
+        assertEquals(1, offers.size());
+    }
+
+    private IronMQEventBus bus(BiConsumer<String, List<JsonObject>> offerer, ExecutorService executor) {
+        IronMQEventBus bus = new IronMQEventBus(offerer, null, executor);
+        bus.setCodec(new NameCodec());
+        return bus;
+    }
+
+    private void record(String queue, List<JsonObject> chunk) {
+        offers.add(new Offer(queue, chunk.size()));
+    }
+
+    private static List<Order> orders(int count) {
+        return IntStream.range(0, count).mapToObj(i -> new Order()).collect(Collectors.toList());
+    }
+
+    @Queue
+    public static class Order extends Event {
+    }
+
+    @Queue(name = "billing")
+    public static class Invoice extends Event {
+    }
+
+    public static class NotQueued extends Event {
+    }
+
+    private static class Offer {
+
+        final String queue;
+        final int size;
+
+        Offer(String queue, int size) {
+            this.queue = queue;
+            this.size = size;
+        }
+    }
+
+    /**
+     * Encodes the event class name, so that the test needs no JSON mapper
+     */
+    private static class NameCodec implements EventCodec {
+
+        @Override
+        public String getName() {
+            return "name";
+        }
+
+        @Override
+        public byte[] encode(Event event) {
+            return event.getClass().getName().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+}
@@ -0,0 +1,337 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.After;
+import org.junit.Test;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class IronMQEventConsumerTest {
+
+    private final FakeClient client = new FakeClient();
+    private final BlockingQueue<Event> posted = new LinkedBlockingQueue<>();
+    private final List<JsonObject> errors = Collections.synchronizedList(new ArrayList<>());
+    private IronMQEventConsumer consumer;
+
+    @After
+    public void tearDown() {
+        if (consumer != null) {
+            consumer.close();
+        }
+    }
+
+    @Test
+    public void posts_reserved_events_and_deletes_them_once_handled() throws Exception {
+        consumer = consumer(events -> events.forEach(posted::add));
+        client.offer(message("m1", "Order", "o1", 1), message("m2", "Order", "o2", 1), message("m3", "Order", "o3", 1));
+        consumer.init();
+
+        List<String> ids = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            Event event = posted.poll(5, TimeUnit.SECONDS);
+            assertFalse(event.isLocal());
+            ids.add(event.getId());
+        }
+        assertEquals(sorted("o1", "o2", "o3"), sorted(ids));
+        await(() -> client.deleted().size() == 3);
+        assertEquals(sorted("m1", "m2", "m3"), sorted(client.deleted()));
+        assertEquals(0, consumer.getInFlight());
+    }
+
+    @Test
+    public void extends_the_reservation_of_messages_still_being_handled() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        consumer = consumer(events -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        // reservations of 2s are extended once they are 1s old
+        consumer.setReservationTimeout(2);
+        client.offer(message("m1", "Order", "o1", 1));
+        consumer.init();
+
+        await(() -> !client.touched.isEmpty());
+        release.countDown();
+        await(() -> client.deleted().size() == 1);
+
+        assertEquals("m1", client.touched.get(0));
+        assertEquals("r-m1-touched", client.deletes.get(0).getString("reservation_id"));
+    }
+
+    @Test
+    public void keeps_failed_messages_until_their_last_delivery() throws Exception {
+        consumer = consumer(events -> {
+            throw new IllegalStateException("failed");
+        });
+        consumer.setMaxDeliveries(2);
+        consumer.setDeadLetterQueue("dead");
+        client.offer(message("first", "Order", "o1", 1), message("last", "Order", "o2", 2));
+        consumer.init();
+
+        await(() -> errors.size() == 2 && client.deleted().size() == 1);
+        Thread.sleep(50);
+
+        assertEquals(Collections.singletonList("last"), client.deleted());
+        assertEquals(1, client.deadLetters.size());
+        assertEquals(message("last", "Order", "o2", 2).getString("body"), client.deadLetters.get(0));
+    }
+
+    @Test
+    public void moves_undecodable_messages_to_the_dead_letter_queue_right_away() throws Exception {
+        consumer = consumer(events -> events.forEach(posted::add));
+        consumer.setDeadLetterQueue("dead");
+        client.offer(message("m1", "Unknown", "o1", 1));
+        consumer.init();
+
+        await(() -> client.deleted().size() == 1);
+
+        assertEquals(1, errors.size());
+        assertEquals(1, client.deadLetters.size());
+        assertTrue(posted.isEmpty());
+    }
+
+    @Test
+    public void reserves_again_after_a_failed_reserve() throws Exception {
+        consumer = consumer(events -> events.forEach(posted::add));
+        client.reserveFailures.set(1);
+        client.offer(message("m1", "Order", "o1", 1));
+        consumer.init();
+
+        assertEquals("o1", posted.poll(5, TimeUnit.SECONDS).getId());
+        assertTrue(client.reserves.get() >= 2);
+    }
+
+    @Test
+    public void does_not_reserve_more_messages_than_the_prefetch_limit() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        consumer = consumer(events -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        consumer.setPrefetch(2);
+        for (int i = 0; i < 5; i++) {
+            client.offer(message("m" + i, "Order", "o" + i, 1));
+        }
+        consumer.init();
+
+        await(() -> consumer.getInFlight() == 2);
+        Thread.sleep(100);
+        assertEquals(2, consumer.getInFlight());
+        assertEquals(3, client.queued());
+
+        release.countDown();
+        await(() -> client.deleted().size() == 5);
+    }
+
+    @Test
+    public void runs_on_daemon_threads() throws Exception {
+        BlockingQueue<Boolean> daemons = new LinkedBlockingQueue<>();
+        consumer = consumer(events -> daemons.add(Thread.currentThread().isDaemon()));
+        client.offer(message("m1", "Order", "o1", 1));
+        consumer.init();
+
+        assertTrue(daemons.poll(5, TimeUnit.SECONDS));
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.getName().startsWith(IronMQEventConsumer.class.getSimpleName())) {
+                assertTrue(thread.getName(), thread.isDaemon());
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_events_not_sent_to_a_queue() {
+        new IronMQEventConsumer(client, null, events -> {
+        }, NotQueued.class);
+    }
+
+    private IronMQEventConsumer consumer(EventBus delegate) {
+        IronMQEventConsumer consumer = new IronMQEventConsumer(client, null, delegate, Order.class);
+        consumer.setCodec(new IdCodec());
+        consumer.setWait(0);
+        consumer.setDeleteInterval(10, TimeUnit.MILLISECONDS);
+        consumer.setErrorHandler((message, e) -> errors.add(message));
+        return consumer;
+    }
+
+    private static JsonObject message(String id, String eventType, String eventId, int reservedCount) {
+        String body = Json.createObjectBuilder()
+            .add("fromQueue", "orders")
+            .add("eventType", eventType)
+            .add("codec", "id")
+            .add("data", Base64.getEncoder().encodeToString(eventId.getBytes(StandardCharsets.UTF_8)))
+            .build()
+            .toString();
+        return Json.createObjectBuilder()
+            .add("id", id)
+            .add("body", body)
+            .add("reservation_id", "r-" + id)
+            .add("reserved_count", reservedCount)
+            .build();
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long end = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out", System.currentTimeMillis() < end);
+            Thread.sleep(10);
+        }
+    }
+
+    private static List<String> sorted(Collection<String> values) {
+        return values.stream().sorted().collect(Collectors.toList());
+    }
+
+    private static List<String> sorted(String... values) {
+        return sorted(Arrays.asList(values));
+    }
+
+    @Queue(name = "orders")
+    public static class Order extends Event {
+    }
+
+    public static class NotQueued extends Event {
+    }
+
+    /**
+     * Encodes the event id, so that the test needs no JSON mapper
+     */
+    private static class IdCodec implements EventCodec {
+
+        @Override
+        public String getName() {
+            return "id";
+        }
+
+        @Override
+        public byte[] encode(Event event) {
+            return event.getId().getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+            try {
+                T event = eventType.newInstance();
+                event.setId(new String(bytes, StandardCharsets.UTF_8));
+                return event;
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    /**
+     * In-memory queues answering reserve requests right away instead of long polling
+     */
+    private static class FakeClient extends IronMQRestClient {
+
+        final List<JsonObject> deletes = Collections.synchronizedList(new ArrayList<>());
+        final List<String> touched = Collections.synchronizedList(new ArrayList<>());
+        final List<String> deadLetters = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger reserves = new AtomicInteger();
+        final AtomicInteger reserveFailures = new AtomicInteger();
+        private final List<JsonObject> queue = new ArrayList<>();
+
+        FakeClient() {
+            super("localhost", "project", "token");
+        }
+
+        synchronized void offer(JsonObject... messages) {
+            Collections.addAll(queue, messages);
+        }
+
+        synchronized int queued() {
+            return queue.size();
+        }
+
+        List<String> deleted() {
+            synchronized (deletes) {
+                return deletes.stream().map(message -> message.getString("id")).collect(Collectors.toList());
+            }
+        }
+
+        @Override
+        public List<JsonObject> reserve(String queueName, int n, int timeout, int wait) throws IOException {
+            reserves.incrementAndGet();
+            if (reserveFailures.getAndUpdate(failures -> Math.max(0, failures - 1)) > 0) {
+                throw new IOException("IronMQ unavailable");
+            }
+            List<JsonObject> reserved = new ArrayList<>();
+            synchronized (this) {
+                while (reserved.size() < n && !queue.isEmpty()) {
+                    reserved.add(queue.remove(0));
+                }
+            }
+            if (reserved.isEmpty()) {
+                try {
+                    Thread.sleep(10);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return reserved;
+        }
+
+        @Override
+        public JsonObject touch(String queueName, JsonObject message, int timeout) {
+            touched.add(message.getString("id"));
+            return Json.createObjectBuilder()
+                .add("id", message.getString("id"))
+                .add("body", message.getString("body"))
+                .add("reservation_id", message.getString("reservation_id") + "-touched")
+                .build();
+        }
+
+        @Override
+        public void delete(String queueName, Collection<JsonObject> messages) {
+            deletes.addAll(messages);
+        }
+
+        @Override
+        public void post(String queueName, Collection<String> bodies) {
+            assertEquals("dead", queueName);
+            deadLetters.addAll(bodies);
+        }
+    }
+
+}
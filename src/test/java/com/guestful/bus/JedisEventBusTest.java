@@ -0,0 +1,389 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class JedisEventBusTest {
+
+    private final RecordingJedisPool jedisPool = new RecordingJedisPool();
+    private final List<Event> received = new ArrayList<>();
+    private final JedisEventBus sender = new JedisEventBus(events -> {
+    }, jedisPool, new TextCodec());
+    private final JedisEventBus receiver = new JedisEventBus(events -> events.forEach(received::add), jedisPool, new TextCodec());
+
+    @Test
+    public void packs_the_events_of_a_post_in_one_message() throws Exception {
+        List<Ping> events = pings(5);
+
+        sender.post(events);
+
+        assertEquals(1, jedisPool.published.size());
+        assertEquals(1, jedisPool.roundTrips);
+        receiveAll();
+        assertEquals(texts(events), texts(received));
+        assertEquals(ids(events), ids(received));
+        for (Event event : received) {
+            assertFalse(event.isLocal());
+            assertEquals(sender.getNodeId(), event.getEmiter());
+        }
+    }
+
+    @Test
+    public void splits_batches_by_size_and_pipelines_them() throws Exception {
+        sender.setMaxBatchSize(2);
+        List<Ping> events = pings(5);
+
+        sender.post(events);
+
+        assertEquals(3, jedisPool.published.size());
+        assertEquals(1, jedisPool.roundTrips);
+        receiveAll();
+        assertEquals(texts(events), texts(received));
+    }
+
+    @Test
+    public void splits_batches_by_bytes() throws Exception {
+        sender.setMaxBatchBytes(200);
+        List<Ping> events = pings(10);
+
+        sender.post(events);
+
+        assertTrue(jedisPool.published.size() > 1);
+        for (byte[] message : jedisPool.published) {
+            assertTrue(message.length <= 200);
+        }
+        receiveAll();
+        assertEquals(texts(events), texts(received));
+    }
+
+    @Test
+    public void sends_an_event_bigger_than_the_byte_limit_alone() throws Exception {
+        sender.setMaxBatchBytes(10);
+        List<Ping> events = pings(3);
+
+        sender.post(events);
+
+        assertEquals(3, jedisPool.published.size());
+        receiveAll();
+        assertEquals(texts(events), texts(received));
+    }
+
+    @Test
+    public void publishes_on_the_channel_of_each_type() throws Exception {
+        sender.post(new Ping("ping"), new Pong("pong"), new Ping("ping again"));
+
+        assertEquals(2, jedisPool.published.size());
+        assertTrue(jedisPool.channels.contains(EventMetadata.of(Ping.class).getChannel()));
+        assertTrue(jedisPool.channels.contains("eventbus.pong"));
+        receiveAll();
+        assertEquals(3, received.size());
+        assertTrue(received.stream().anyMatch(event -> event instanceof Pong && ((Pong) event).text.equals("pong")));
+    }
+
+    @Test
+    public void only_publishes_local_cluster_events() {
+        Ping remote = new Ping("remote");
+        remote.setLocal(false);
+
+        sender.post(remote, new NotClustered());
+
+        assertTrue(jedisPool.published.isEmpty());
+        assertEquals(0, jedisPool.roundTrips);
+    }
+
+    @Test
+    public void skips_its_own_echoes() throws Exception {
+        sender.post(pings(3));
+
+        for (byte[] message : jedisPool.published) {
+            sender.receive(message);
+        }
+
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    public void does_not_stamp_the_posted_events() throws Exception {
+        Ping event = new Ping("ping");
+
+        sender.post(event);
+
+        assertNull(event.getEmiter());
+        receiveAll();
+        assertEquals(sender.getNodeId(), received.get(0).getEmiter());
+    }
+
+    @Test
+    public void skips_event_types_the_delegate_does_not_accept() throws Exception {
+        JedisEventBus pongsOnly = new JedisEventBus(new EventBus() {
+            @Override
+            public void post(Stream<? extends Event> events) {
+                events.forEach(received::add);
+            }
+
+            @Override
+            public Collection<Class<?>> getAcceptedTypes() {
+                return Collections.singleton(Pong.class);
+            }
+        }, jedisPool, new TextCodec());
+        sender.setMaxBatchSize(1);
+
+        sender.post(new Ping("ping"), new Pong("pong"));
+        for (byte[] message : jedisPool.published) {
+            pongsOnly.receive(message);
+        }
+
+        assertEquals(1, received.size());
+        assertEquals("pong", ((Pong) received.get(0)).text);
+    }
+
+    @Test
+    public void subscribes_to_the_channels_of_the_accepted_cluster_types() {
+        JedisEventBus bus = new JedisEventBus(accepting(Ping.class, Pong.class, NotClustered.class, Runnable.class), jedisPool, new TextCodec());
+
+        assertEquals(new TreeSet<>(Arrays.asList("eventbus", "eventbus.pong")), bus.channels());
+    }
+
+    @Test
+    public void subscribes_to_the_default_channel_only_without_accepted_cluster_types() {
+        JedisEventBus bus = new JedisEventBus(accepting(NotClustered.class), jedisPool, new TextCodec());
+
+        assertEquals(Collections.singleton("eventbus"), bus.channels());
+    }
+
+    @Test
+    public void subscribes_to_all_channels_when_the_delegate_accepts_all_events() {
+        JedisEventBus bus = new JedisEventBus(accepting(Pong.class, Event.class), jedisPool, new TextCodec());
+
+        assertTrue(bus.channels().isEmpty());
+    }
+
+    @Test
+    public void other_transports_in_the_delegate_do_not_force_all_channels() {
+        LocalEventBus local = new LocalEventBus(Runnable::run);
+        local.register(new Object() {
+            @Subscribe
+            public void on(Pong pong) {
+            }
+        });
+        MultipleEventBus delegate = new MultipleEventBus().add(local).add(new RedissonEventBus(events -> {
+        }, message -> {
+        }));
+        JedisEventBus bus = new JedisEventBus(delegate, jedisPool, new TextCodec());
+
+        Set<String> channels = bus.channels();
+
+        assertFalse(channels.isEmpty());
+        assertTrue(channels.contains("eventbus.pong"));
+    }
+
+    @Test
+    public void round_trips_compressed_messages() throws Exception {
+        Compression compression = new Compression(64);
+        sender.setCompression(compression);
+        List<Ping> events = pings(50);
+
+        sender.post(events);
+
+        assertEquals(1, compression.getCompressedPayloads());
+        assertTrue(Compression.isCompressed(jedisPool.published.get(0)));
+        receiveAll();
+        assertEquals(texts(events), texts(received));
+    }
+
+    @Test
+    public void completes_async_posts_once_published() throws Exception {
+        sender.postAsync(Stream.of(new Ping("ping"))).toCompletableFuture().get();
+        assertEquals(1, jedisPool.published.size());
+    }
+
+    private static EventBus accepting(Class<?>... types) {
+        return new EventBus() {
+            @Override
+            public void post(Stream<? extends Event> events) {
+            }
+
+            @Override
+            public Collection<Class<?>> getAcceptedTypes() {
+                return Arrays.asList(types);
+            }
+        };
+    }
+
+    private void receiveAll() throws Exception {
+        for (byte[] message : jedisPool.published) {
+            receiver.receive(message);
+        }
+    }
+
+    private static List<Ping> pings(int count) {
+        return IntStream.range(0, count).mapToObj(i -> new Ping("ping " + i)).collect(Collectors.toList());
+    }
+
+    private static List<String> texts(List<? extends Event> events) {
+        return events.stream().map(Object::toString).collect(Collectors.toList());
+    }
+
+    private static List<String> ids(List<? extends Event> events) {
+        return events.stream().map(Event::getId).collect(Collectors.toList());
+    }
+
+    @Cluster
+    public static class Ping extends Event {
+
+        final String text;
+
+        Ping(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    @Cluster(channel = "pong")
+    public static class Pong extends Event {
+
+        final String text;
+
+        Pong(String text) {
+            this.text = text;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+
+    public static class NotClustered extends Event {
+    }
+
+    /**
+     * Encodes the id and text of the test events, registering an id for {@link Ping} only so that {@link Pong} goes
+     * through type names
+     */
+    static class TextCodec implements EventCodec {
+
+        @Override
+        public String getName() {
+            return "text";
+        }
+
+        @Override
+        public byte[] encode(Event event) {
+            return (event.getId() + "\n" + event).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+            String[] parts = new String(bytes, StandardCharsets.UTF_8).split("\n", 2);
+            Event event = eventType == Ping.class ? new Ping(parts[1]) : new Pong(parts[1]);
+            event.setId(parts[0]);
+            return eventType.cast(event);
+        }
+
+        @Override
+        public int getTypeId(Class<? extends Event> eventType) {
+            return eventType == Ping.class ? 1 : 0;
+        }
+
+        @Override
+        public Class<? extends Event> getType(int typeId) {
+            return typeId == 1 ? Ping.class : null;
+        }
+    }
+
+    /**
+     * Records the published messages instead of sending them to Redis
+     */
+    static class RecordingJedisPool extends JedisPool {
+
+        final List<String> channels = new ArrayList<>();
+        final List<byte[]> published = new ArrayList<>();
+        int roundTrips;
+
+        RecordingJedisPool() {
+            super("localhost");
+        }
+
+        @Override
+        public Jedis getResource() {
+            return new Jedis("localhost") {
+                @Override
+                public Long publish(byte[] channel, byte[] message) {
+                    record(channel, message);
+                    roundTrips++;
+                    return 1L;
+                }
+
+                @Override
+                public Pipeline pipelined() {
+                    return new Pipeline() {
+                        @Override
+                        public Response<Long> publish(byte[] channel, byte[] message) {
+                            record(channel, message);
+                            return null;
+                        }
+
+                        @Override
+                        public void sync() {
+                            roundTrips++;
+                        }
+                    };
+                }
+            };
+        }
+
+        @Override
+        public void returnResource(Jedis resource) {
+        }
+
+        @Override
+        public void returnBrokenResource(Jedis resource) {
+        }
+
+        private void record(byte[] channel, byte[] message) {
+            channels.add(new String(channel, StandardCharsets.UTF_8));
+            published.add(message);
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.guestful.simplepool.ObjectPool;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class KryoEventCodecTest {
+
+    private final Pool pool = new Pool();
+    private final KryoEventCodec codec = new KryoEventCodec(pool);
+
+    @Test
+    public void round_trips_events() {
+        Order order = new Order();
+        order.setRestaurant("r1");
+
+        Order decoded = codec.decode(codec.encode(order), Order.class);
+
+        assertEquals(order.getId(), decoded.getId());
+        assertEquals("r1", decoded.getRestaurant());
+    }
+
+    @Test
+    public void identifies_registered_types() {
+        codec.register(Order.class, 10);
+
+        assertEquals(10, codec.getTypeId(Order.class));
+        assertSame(Order.class, codec.getType(10));
+        assertEquals(0, codec.getTypeId(Invoice.class));
+        assertNull(codec.getType(11));
+    }
+
+    @Test
+    public void registers_the_types_in_all_the_kryo_instances() {
+        Kryo before = pool.create();
+        codec.register(Order.class, 10).register(Invoice.class, 11);
+        Kryo after = pool.create();
+
+        codec.decode(codec.encode(new Order()), Order.class);
+        codec.decode(codec.encode(new Order()), Order.class);
+
+        for (Kryo kryo : pool.created) {
+            assertEquals(10, kryo.getRegistration(Order.class).getId());
+            assertSame(Invoice.class, kryo.getRegistration(11).getType());
+        }
+        assertTrue(pool.created.contains(before));
+        assertTrue(pool.created.contains(after));
+    }
+
+    @Test
+    public void registers_types_added_after_a_kryo_instance_was_used() {
+        codec.register(Order.class, 10);
+        codec.encode(new Order());
+
+        codec.register(Invoice.class, 11);
+        codec.encode(new Order());
+
+        for (Kryo kryo : pool.created) {
+            assertSame(Invoice.class, kryo.getRegistration(11).getType());
+        }
+    }
+
+    @Test
+    public void registering_a_type_again_with_its_id_is_ignored() {
+        codec.register(Order.class, 10).register(Order.class, 10);
+
+        assertEquals(10, codec.getTypeId(Order.class));
+    }
+
+    @Test
+    public void rejects_a_type_registered_again_with_another_id() {
+        codec.register(Order.class, 10);
+        try {
+            codec.register(Order.class, 11);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(10, codec.getTypeId(Order.class));
+            assertNull(codec.getType(11));
+        }
+    }
+
+    @Test
+    public void rejects_an_id_registered_again_for_another_type() {
+        codec.register(Order.class, 10);
+        try {
+            codec.register(Invoice.class, 10);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertSame(Order.class, codec.getType(10));
+            assertEquals(0, codec.getTypeId(Invoice.class));
+        }
+    }
+
+    @Test
+    public void rejects_ids_used_by_kryo() {
+        try {
+            codec.register(Order.class, 1);
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, codec.getTypeId(Order.class));
+            assertSame(String.class, pool.create().getRegistration(1).getType());
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_non_positive_ids() {
+        codec.register(Order.class, 0);
+    }
+
+    public static class Order extends Event {
+
+        private String restaurant;
+
+        public String getRestaurant() {
+            return restaurant;
+        }
+
+        public void setRestaurant(String restaurant) {
+            this.restaurant = restaurant;
+        }
+    }
+
+    public static class Invoice extends Event {
+    }
+
+    /**
+     * Lends the idle instances in turn, so that the registrations of each one are checked
+     */
+    private static class Pool implements ObjectPool<Kryo> {
+
+        final List<Kryo> created = new ArrayList<>();
+        private final Deque<Kryo> idle = new ArrayDeque<>();
+
+        Kryo create() {
+            Kryo kryo = new Kryo();
+            created.add(kryo);
+            idle.addLast(kryo);
+            return kryo;
+        }
+
+        @Override
+        public Kryo borrow() {
+            return idle.isEmpty() ? create() : idle.pollFirst();
+        }
+
+        @Override
+        public void yield(Kryo kryo) {
+            idle.addLast(kryo);
+        }
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class LimitedExecutorTest {
+
+    private final ExecutorService pool = EventExecutors.newVirtualThreadExecutor();
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void runs_at_most_max_concurrency_tasks_at_the_same_time() throws Exception {
+        Executor executor = EventExecutors.limit(pool, 3);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger max = new AtomicInteger();
+        int tasks = 200;
+        CountDownLatch done = new CountDownLatch(tasks);
+        for (int i = 0; i < tasks; i++) {
+            executor.execute(() -> {
+                max.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(3, max.get());
+    }
+
+    @Test
+    public void runs_tasks_in_submission_order() throws Exception {
+        Executor executor = new LimitedExecutor(pool, 1);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            int n = i;
+            executor.execute(() -> {
+                order.add(n);
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, order.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void keeps_running_after_a_failed_task() throws Exception {
+        Executor executor = new LimitedExecutor(Runnable::run, 1);
+        AtomicInteger runs = new AtomicInteger();
+        try {
+            executor.execute(() -> {
+                throw new IllegalStateException("expected");
+            });
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        executor.execute(runs::incrementAndGet);
+        assertEquals(1, runs.get());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_a_zero_limit() {
+        new LimitedExecutor(pool, 0);
+    }
+
+}
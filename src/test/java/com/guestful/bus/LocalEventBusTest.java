@@ -0,0 +1,278 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class LocalEventBusTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+    private final List<Throwable> errors = new CopyOnWriteArrayList<>();
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void dispatches_to_handlers_of_the_event_class_and_its_super_types() {
+        LocalEventBus bus = new LocalEventBus(Runnable::run, (event, e) -> errors.add(e));
+        Recorder recorder = new Recorder();
+        bus.register(recorder);
+
+        bus.post(new Created());
+        bus.post(new Deleted());
+
+        assertEquals(2, recorder.events.size());
+        assertEquals(1, recorder.created.size());
+        assertEquals(1, recorder.audited.size());
+        assertTrue(errors.isEmpty());
+    }
+
+    @Test
+    public void unregistered_handlers_are_not_called() {
+        LocalEventBus bus = new LocalEventBus(Runnable::run, (event, e) -> errors.add(e));
+        Recorder recorder = new Recorder();
+        bus.register(recorder);
+        assertTrue(bus.accepts(Created.class));
+
+        bus.unregister(recorder);
+        bus.post(new Created());
+
+        assertTrue(recorder.events.isEmpty());
+        assertFalse(bus.accepts(Created.class));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_registering_a_handler_twice() {
+        LocalEventBus bus = new LocalEventBus(Runnable::run);
+        Recorder recorder = new Recorder();
+        bus.register(recorder);
+        bus.register(recorder);
+    }
+
+    @Test
+    public void reports_handler_errors() {
+        LocalEventBus bus = new LocalEventBus(Runnable::run, (event, e) -> errors.add(e));
+        bus.register(new Object() {
+            @Subscribe
+            public void on(Created event) {
+                throw new IllegalStateException("expected");
+            }
+        });
+
+        bus.post(new Created());
+
+        assertEquals(1, errors.size());
+        assertEquals("expected", errors.get(0).getMessage());
+    }
+
+    @Test
+    public void limits_the_concurrency_of_a_handler() throws Exception {
+        LocalEventBus bus = new LocalEventBus(pool, (event, e) -> errors.add(e));
+        ConcurrencyProbe probe = new ConcurrencyProbe(100);
+        bus.register(new Object() {
+            @Subscribe(maxConcurrency = 2)
+            public void on(Created event) {
+                probe.run();
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            bus.post(new Created());
+        }
+
+        assertTrue(probe.done.await(10, TimeUnit.SECONDS));
+        assertTrue("max: " + probe.max, probe.max.get() <= 2);
+    }
+
+    @Test
+    public void calls_guava_subscribers_one_event_at_a_time() throws Exception {
+        LocalEventBus bus = new LocalEventBus(pool, (event, e) -> errors.add(e));
+        ConcurrencyProbe probe = new ConcurrencyProbe(50);
+        bus.register(new Object() {
+            @com.google.common.eventbus.Subscribe
+            public void on(Created event) {
+                probe.run();
+            }
+        });
+
+        for (int i = 0; i < 50; i++) {
+            bus.post(new Created());
+        }
+
+        assertTrue(probe.done.await(10, TimeUnit.SECONDS));
+        assertEquals(1, probe.max.get());
+    }
+
+    @Test
+    public void handles_partitioned_events_of_a_key_in_order() throws Exception {
+        LocalEventBus bus = new LocalEventBus(pool, (event, e) -> errors.add(e), 4);
+        List<Integer> sequence = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(500);
+        bus.register(new Object() {
+            @Subscribe
+            public void on(Moved event) {
+                sequence.add(event.sequence);
+                done.countDown();
+            }
+        });
+
+        for (int i = 0; i < 500; i++) {
+            bus.post(new Moved("table-1", i));
+        }
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, sequence.get(i).intValue());
+        }
+    }
+
+    @Test
+    public void hands_batches_to_batch_handlers() {
+        LocalEventBus bus = new LocalEventBus(Runnable::run, (event, e) -> errors.add(e));
+        List<List<Created>> batches = new ArrayList<>();
+        bus.register(new Object() {
+            @Subscribe
+            @Batch(maxSize = 3, maxLinger = 60000)
+            public void on(List<Created> events) {
+                batches.add(new ArrayList<>(events));
+            }
+        });
+
+        for (int i = 0; i < 7; i++) {
+            bus.post(new Created());
+        }
+        assertEquals(2, batches.size());
+        assertEquals(3, batches.get(0).size());
+
+        bus.close();
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(2).size());
+    }
+
+    @Test
+    public void hands_events_posted_after_close_right_away_to_batch_handlers() {
+        LocalEventBus bus = new LocalEventBus(Runnable::run, (event, e) -> errors.add(e));
+        List<List<Created>> batches = new ArrayList<>();
+        bus.register(new Object() {
+            @Subscribe
+            @Batch(maxSize = 3, maxLinger = 60000)
+            public void on(List<Created> events) {
+                batches.add(new ArrayList<>(events));
+            }
+        });
+        bus.post(new Created());
+        bus.close();
+        assertEquals(1, batches.size());
+
+        bus.post(new Created());
+        bus.post(new Created());
+
+        assertEquals(3, batches.size());
+        assertEquals(1, batches.get(1).size());
+        assertEquals(1, batches.get(2).size());
+        assertTrue(errors.isEmpty());
+    }
+
+    public static class Created extends Event implements Audited {
+    }
+
+    public static class Deleted extends Event {
+    }
+
+    public static class Moved extends Event implements Partitioned {
+
+        final String table;
+        final int sequence;
+
+        Moved(String table, int sequence) {
+            this.table = table;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public Object getPartitionKey() {
+            return table;
+        }
+    }
+
+    public interface Audited {
+    }
+
+    public static class Recorder {
+
+        final List<Event> events = new ArrayList<>();
+        final List<Created> created = new ArrayList<>();
+        final List<Audited> audited = new ArrayList<>();
+
+        @Subscribe
+        public void onEvent(Event event) {
+            events.add(event);
+        }
+
+        @Subscribe
+        public void onCreated(Created event) {
+            created.add(event);
+        }
+
+        @Subscribe
+        public void onAudited(Audited event) {
+            audited.add(event);
+        }
+    }
+
+    private static class ConcurrencyProbe implements Runnable {
+
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger max = new AtomicInteger();
+        final CountDownLatch done;
+
+        ConcurrencyProbe(int calls) {
+            done = new CountDownLatch(calls);
+        }
+
+        @Override
+        public void run() {
+            int n = running.incrementAndGet();
+            max.accumulateAndGet(n, Math::max);
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            done.countDown();
+        }
+    }
+
+}
@@ -0,0 +1,462 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.github.fakemongo.Fongo;
+import com.guestful.json.JsonMapper;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBEncoder;
+import com.mongodb.DBObject;
+import com.mongodb.FongoDB;
+import com.mongodb.FongoDBCollection;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteConcernError;
+import com.mongodb.WriteResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static com.guestful.bus.TimingWheelSchedulerTest.scheduled;
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MongoSchedulerTest {
+
+    static final JsonMapper JSON = (JsonMapper) Proxy.newProxyInstance(JsonMapper.class.getClassLoader(), new Class<?>[]{JsonMapper.class}, (proxy, method, args) -> {
+        // stores a Named event as its name, which is enough to read it back
+        if (method.getName().equals("toJson")) return ((Named) args[0]).name;
+        if (method.getName().equals("fromJson") && args[0] instanceof String) return new Named((String) args[0]);
+        throw new UnsupportedOperationException(method.getName());
+    });
+
+    private final BlockingQueue<Event> fired = new LinkedBlockingQueue<>();
+    private final List<String> failing = new CopyOnWriteArrayList<>();
+    private final EventBus bus = events -> events.forEach(event -> {
+        if (failing.contains(event.toString())) throw new IllegalStateException("cannot fire " + event);
+        fired.add(event);
+    });
+    private FongoDB db;
+    private TestCollection collection;
+    private MongoScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        db = (FongoDB) new Fongo("test").getDB("test");
+        collection = new TestCollection(db, "scheduled");
+        scheduler = new MongoScheduler(collection, JSON, bus);
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    public void claims_due_events_in_bulk_and_marks_them_fired() throws Exception {
+        scheduler.setClaimSize(2);
+        List<Named> events = named(5);
+        scheduler.schedule(events.stream().map(event -> scheduled(event, -1000, null)));
+        scheduler.schedule(Stream.of(scheduled(new Named("later"), 60000, null)));
+
+        scheduler.produce();
+
+        assertEquals(Arrays.asList("event-0", "event-1", "event-2", "event-3", "event-4"), drain());
+        assertEquals(5, collection.count(new BasicDBObject("status", "FIRED")));
+        assertEquals(1, collection.count(new BasicDBObject("status", "PENDING")));
+        // one lease per claimed batch of 2 events
+        assertEquals(3, collection.distinct("lease", new BasicDBObject("status", "FIRED")).size());
+    }
+
+    @Test
+    public void marks_events_failing_to_fire_as_errors() throws Exception {
+        List<Named> events = named(3);
+        failing.add("event-1");
+        List<Map> errors = new ArrayList<>();
+        scheduler.schedule(events.stream().map(event -> scheduled(event, -1000, null)));
+
+        scheduler.produce((event, err) -> errors.add(event));
+
+        assertEquals(Arrays.asList("event-0", "event-2"), drain());
+        assertEquals(1, errors.size());
+        assertEquals(events.get(1).name, errors.get(0).get("data"));
+        DBObject error = collection.findOne(new BasicDBObject("status", "ERROR"));
+        assertEquals(events.get(1).name, error.get("data"));
+        assertEquals("cannot fire " + events.get(1), error.get("error"));
+        assertEquals(2, collection.count(new BasicDBObject("status", "FIRED")));
+    }
+
+    @Test
+    public void does_not_update_events_claimed_again_by_another_node() throws Exception {
+        scheduler.schedule(Stream.of(scheduled(new Named("slow"), -1000, null)));
+        // while the event fires, its lease times out and another node claims it
+        scheduler.setExecutor(command -> {
+            collection.update(new BasicDBObject("data", "slow"), new BasicDBObject("$set", new BasicDBObject("lease", "other")));
+            command.run();
+        });
+
+        scheduler.produce();
+
+        assertEquals("slow", String.valueOf(fired.poll()));
+        DBObject stored = collection.findOne();
+        assertEquals("LOADING", stored.get("status"));
+        assertEquals("other", stored.get("lease"));
+    }
+
+    @Test
+    public void inserts_in_bounded_chunks() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            scheduler.setChunkSize(3);
+            scheduler.setChunkExecutor(executor, 2);
+            scheduler.schedule(named(10).stream().map(event -> scheduled(event, 60000, null)));
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(10, collection.count());
+        assertEquals(4, collection.bulks.get());
+    }
+
+    @Test
+    public void reports_the_events_rejected_by_a_chunk_and_writes_the_other_chunks() throws Exception {
+        List<Named> events = named(4);
+        List<ScheduledEvent> rejected = new ArrayList<>();
+        scheduler.setChunkSize(2);
+        scheduler.setChunkErrorHandler((failed, err) -> rejected.addAll(failed));
+        // the second event of the first chunk is rejected
+        collection.failure = object -> object.get("data").equals(events.get(1).name)
+            ? bulkWriteException(Collections.singletonList(new BulkWriteError(11000, "duplicate", new BasicDBObject(), 1)), null)
+            : null;
+
+        scheduler.schedule(events.stream().map(event -> scheduled(event, 60000, null)));
+
+        assertEquals(1, rejected.size());
+        assertSame(events.get(1), rejected.get(0).getScheduledEvent());
+        assertEquals(3, collection.count());
+    }
+
+    @Test
+    public void reports_all_the_events_of_a_chunk_failing_its_write_concern() throws Exception {
+        List<Named> events = named(2);
+        List<ScheduledEvent> rejected = new ArrayList<>();
+        scheduler.setChunkErrorHandler((failed, err) -> rejected.addAll(failed));
+        collection.failure = object -> bulkWriteException(Collections.emptyList(), new WriteConcernError(64, "waiting for replication timed out", new BasicDBObject()));
+
+        scheduler.schedule(events.stream().map(event -> scheduled(event, 60000, null)));
+
+        assertEquals(events, rejected.stream().map(ScheduledEvent::getScheduledEvent).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void reads_back_events_stored_as_json_once_a_codec_is_set() throws Exception {
+        Named json = new Named("json");
+        Named binary = new Named("binary");
+        scheduler.schedule(Stream.of(scheduled(json, -2000, null)));
+        scheduler.setCodec(new TextCodec());
+        scheduler.schedule(Stream.of(scheduled(binary, -1000, null)));
+
+        DBObject stored = collection.findOne(new BasicDBObject("codec", "text"));
+        assertArrayEquals("binary".getBytes(StandardCharsets.UTF_8), (byte[]) stored.get("data"));
+
+        scheduler.produce();
+
+        assertEquals(Arrays.asList("json", "binary"), drain());
+    }
+
+    @Test
+    public void marks_events_stored_with_an_unknown_codec_as_errors() throws Exception {
+        scheduler.setCodec(new TextCodec());
+        scheduler.schedule(Stream.of(scheduled(new Named("binary"), -1000, null)));
+        scheduler.setCodec(null);
+
+        scheduler.produce((event, err) -> {
+        });
+
+        assertTrue(fired.isEmpty());
+        assertEquals("No codec to decode text payload", collection.findOne(new BasicDBObject("status", "ERROR")).get("error"));
+    }
+
+    @Test
+    public void wakes_the_poller_up_when_an_earlier_event_is_scheduled() throws Exception {
+        scheduler.setIdle(10, 10, TimeUnit.SECONDS);
+        scheduler.init();
+        Thread.sleep(200);
+
+        scheduler.schedule(Stream.of(scheduled(new Named("soon"), 100, null)));
+
+        assertEquals("soon", String.valueOf(fired.poll(5, TimeUnit.SECONDS)));
+    }
+
+    @Test
+    public void doubles_the_poller_sleep_while_no_event_is_pending() throws Exception {
+        scheduler.setIdle(50, 200, TimeUnit.MILLISECONDS);
+        scheduler.init();
+
+        Thread.sleep(1000);
+
+        // sleeps of 50, 100, 200, 200, 200... instead of 20 polls every 50ms
+        int polls = collection.polls.get();
+        assertTrue("polls: " + polls, polls >= 4 && polls <= 8);
+    }
+
+    @Test
+    public void cancels_and_reschedules_keyed_events() throws Exception {
+        Named cancelled = new Named("cancelled");
+        Named moved = new Named("moved");
+        scheduler.schedule(Stream.of(scheduled(cancelled, -1000, "k1"), scheduled(moved, 60000, "k2")));
+
+        scheduler.cancel("k1");
+        scheduler.reschedule("k2", new Date(System.currentTimeMillis() - 1000));
+        scheduler.produce();
+
+        assertEquals(Collections.singletonList("moved"), drain());
+        assertEquals("CANCELLED", collection.findOne(new BasicDBObject("key", "k1")).get("status"));
+        assertEquals("FIRED", collection.findOne(new BasicDBObject("key", "k2")).get("status"));
+    }
+
+    @Test
+    public void keeps_one_pending_event_per_key() throws Exception {
+        scheduler.init();
+        scheduler.close();
+        scheduler.schedule(Stream.of(scheduled(new Named("first"), -1000, "k")));
+        scheduler.schedule(Stream.of(scheduled(new Named("second"), -1000, "k")));
+        assertEquals(1, collection.count());
+
+        scheduler.produce();
+        scheduler.schedule(Stream.of(scheduled(new Named("third"), 60000, "k")));
+        scheduler.cancel("k");
+        scheduler.schedule(Stream.of(scheduled(new Named("fourth"), 60000, "k")));
+
+        assertEquals(Collections.singletonList("second"), drain());
+        assertEquals("fourth", collection.findOne(new BasicDBObject("status", "PENDING")).get("data"));
+        assertEquals(1, collection.count(new BasicDBObject("pendingKey", "k")));
+        assertEquals(3, collection.count(new BasicDBObject("key", "k")));
+    }
+
+    @Test
+    public void retries_upserts_losing_a_race_on_their_key() throws Exception {
+        List<ScheduledEvent> rejected = new ArrayList<>();
+        scheduler.setChunkErrorHandler((failed, err) -> rejected.addAll(failed));
+        scheduler.init();
+        scheduler.close();
+        AtomicInteger attempts = new AtomicInteger();
+        // another node upserts the same key first
+        collection.failure = object -> object.get("pendingKey") != null && object.get("data").equals("mine") && attempts.getAndIncrement() == 0
+            ? insertConcurrently(new BasicDBObject("pendingKey", "k").append("status", "PENDING").append("data", "theirs"))
+            : null;
+
+        scheduler.schedule(Stream.of(scheduled(new Named("mine"), 60000, "k")));
+
+        assertTrue(rejected.isEmpty());
+        assertEquals(2, attempts.get());
+        assertEquals(1, collection.count());
+        assertEquals("mine", collection.findOne().get("data"));
+    }
+
+    @Test
+    public void expires_fired_documents_after_their_retention() throws Exception {
+        scheduler.setRetention(1, 2, TimeUnit.HOURS);
+        scheduler.init();
+        scheduler.close();
+        failing.add("failing");
+        scheduler.schedule(Stream.of(scheduled(new Named("fired"), -1000, null), scheduled(new Named("failing"), -1000, null)));
+
+        scheduler.produce((event, err) -> {
+        });
+
+        assertTrue(collection.getIndexInfo().stream().anyMatch(index -> index.get("key").equals(new BasicDBObject("expireAt", 1))));
+        DBObject fired = collection.findOne(new BasicDBObject("status", "FIRED"));
+        DBObject error = collection.findOne(new BasicDBObject("status", "ERROR"));
+        assertEquals(TimeUnit.HOURS.toMillis(1), ((Date) fired.get("expireAt")).getTime() - ((Date) fired.get("updatedDate")).getTime());
+        assertEquals(TimeUnit.HOURS.toMillis(2), ((Date) error.get("expireAt")).getTime() - ((Date) error.get("updatedDate")).getTime());
+    }
+
+    @Test
+    public void moves_documents_past_their_retention_to_the_archive() throws Exception {
+        FongoDBCollection archive = new FongoDBCollection(db, "archive");
+        scheduler.setRetention(1, 1, TimeUnit.MILLISECONDS);
+        scheduler.setArchive(archive, 1, TimeUnit.HOURS);
+        scheduler.setChunkSize(2);
+        scheduler.schedule(named(5).stream().map(event -> scheduled(event, -1000, "k-" + event)));
+        scheduler.schedule(Stream.of(scheduled(new Named("pending"), 60000, "k")));
+        scheduler.produce();
+        scheduler.cancel("k");
+        scheduler.schedule(Stream.of(scheduled(new Named("pending"), 60000, null)));
+        Thread.sleep(10);
+
+        scheduler.compact();
+
+        assertEquals(1, collection.count());
+        assertEquals("PENDING", collection.findOne().get("status"));
+        assertEquals(5, archive.count(new BasicDBObject("status", "FIRED")));
+        assertEquals(1, archive.count(new BasicDBObject("status", "CANCELLED")));
+        assertNull(archive.findOne(new BasicDBObject("expireAt", new BasicDBObject("$exists", true))));
+    }
+
+    @Test
+    public void nodes_only_claim_the_events_of_their_partitions() throws Exception {
+        FongoDBCollection leases = new FongoDBCollection(db, "leases");
+        BlockingQueue<Event> firedByOther = new LinkedBlockingQueue<>();
+        MongoScheduler other = new MongoScheduler(collection, JSON, events -> events.forEach(firedByOther::add));
+        scheduler.setPartitioning(leases, 4, 300, TimeUnit.MILLISECONDS);
+        other.setPartitioning(leases, 4, 300, TimeUnit.MILLISECONDS);
+        scheduler.produce();
+        other.produce();
+        // a third of the lease timeout later, the first node releases half of its partitions, which the other one takes
+        Thread.sleep(150);
+        scheduler.produce();
+        other.produce();
+
+        scheduler.schedule(named(20).stream().map(event -> scheduled(event, -1000, null)));
+        scheduler.produce();
+        other.produce();
+        other.close();
+
+        assertFalse(fired.isEmpty());
+        assertFalse(firedByOther.isEmpty());
+        assertEquals(20, fired.size() + firedByOther.size());
+        assertEquals(20, collection.count(new BasicDBObject("status", "FIRED")));
+    }
+
+    private List<String> drain() {
+        List<Event> events = new ArrayList<>();
+        fired.drainTo(events);
+        return events.stream().map(Event::toString).collect(Collectors.toList());
+    }
+
+    static List<Named> named(int count) {
+        return IntStream.range(0, count).mapToObj(i -> new Named("event-" + i)).collect(Collectors.toList());
+    }
+
+    private BulkWriteException insertConcurrently(DBObject object) {
+        collection.insert(object);
+        return bulkWriteException(Collections.singletonList(new BulkWriteError(11000, "duplicate key", new BasicDBObject(), 0)), null);
+    }
+
+    static BulkWriteException bulkWriteException(List<BulkWriteError> writeErrors, WriteConcernError writeConcernError) {
+        try {
+            Constructor<BulkWriteException> constructor = BulkWriteException.class.getDeclaredConstructor(BulkWriteResult.class, List.class, WriteConcernError.class, ServerAddress.class);
+            constructor.setAccessible(true);
+            return constructor.newInstance(null, writeErrors, writeConcernError, new ServerAddress());
+        } catch (Exception e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Counts the bulk writes and the poller queries, and fails the writes of the documents rejected by {@link #failure}
+     */
+    static class TestCollection extends FongoDBCollection {
+
+        final AtomicInteger bulks = new AtomicInteger();
+        final AtomicInteger polls = new AtomicInteger();
+        volatile Function<DBObject, RuntimeException> failure = object -> null;
+
+        TestCollection(FongoDB db, String name) {
+            super(db, name);
+        }
+
+        @Override
+        public BulkWriteOperation initializeUnorderedBulkOperation() {
+            bulks.incrementAndGet();
+            return super.initializeUnorderedBulkOperation();
+        }
+
+        @Override
+        public synchronized WriteResult insert(DBObject[] objects, WriteConcern writeConcern, DBEncoder encoder) {
+            for (DBObject object : objects) {
+                RuntimeException e = failure.apply(object);
+                if (e != null) throw e;
+            }
+            return super.insert(objects, writeConcern, encoder);
+        }
+
+        @Override
+        public WriteResult update(DBObject query, DBObject object, boolean upsert, boolean multi, WriteConcern writeConcern, DBEncoder encoder) {
+            RuntimeException e = failure.apply(object);
+            if (e != null) throw e;
+            return super.update(query, object, upsert, multi, writeConcern, encoder);
+        }
+
+        @Override
+        public DBObject findOne(DBObject query, DBObject fields, DBObject orderBy, ReadPreference readPreference) {
+            polls.incrementAndGet();
+            return super.findOne(query, fields, orderBy, readPreference);
+        }
+    }
+
+    public static class Named extends Event {
+
+        private final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    static class TextCodec implements EventCodec {
+
+        @Override
+        public String getName() {
+            return "text";
+        }
+
+        @Override
+        public byte[] encode(Event event) {
+            return ((Named) event).name.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+            return eventType.cast(new Named(new String(bytes, StandardCharsets.UTF_8)));
+        }
+    }
+
+}
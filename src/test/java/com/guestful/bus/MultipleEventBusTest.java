@@ -0,0 +1,255 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.google.common.eventbus.Subscribe;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class MultipleEventBusTest {
+
+    @Test
+    public void routes_each_event_to_the_delegates_accepting_its_type() {
+        Recorder orders = new Recorder(Order.class);
+        Recorder invoices = new Recorder(Invoice.class);
+        Recorder all = new Recorder(Event.class);
+        MultipleEventBus bus = new MultipleEventBus().add(orders).add(invoices).add(all);
+
+        bus.post(new Order(), new Invoice(), new Order());
+
+        assertEquals(2, orders.events.size());
+        assertEquals(1, invoices.events.size());
+        assertEquals(3, all.events.size());
+        assertTrue(bus.accepts(Order.class));
+        assertEquals(3, bus.getAcceptedTypes().size());
+    }
+
+    @Test
+    public void does_not_post_to_delegates_without_accepted_events() {
+        Recorder orders = new Recorder(Order.class);
+        MultipleEventBus bus = new MultipleEventBus().add(orders);
+
+        bus.post(new Invoice());
+
+        assertTrue(orders.events.isEmpty());
+        assertEquals(0, orders.posts);
+        assertFalse(bus.accepts(Invoice.class));
+    }
+
+    @Test
+    public void routes_to_a_delegate_added_after_the_routes_were_cached() {
+        Recorder first = new Recorder(Order.class);
+        MultipleEventBus bus = new MultipleEventBus().add(first);
+        bus.post(new Order());
+
+        Recorder second = new Recorder(Order.class);
+        bus.add(second);
+        bus.post(new Order());
+
+        assertEquals(2, first.events.size());
+        assertEquals(1, second.events.size());
+    }
+
+    @Test
+    public void routes_the_types_a_delegate_accepts_once_its_handlers_change() {
+        GuavaEventBus guava = new GuavaEventBus(Runnable::run, (e, context) -> {
+        });
+        MultipleEventBus bus = new MultipleEventBus().add(guava);
+        OrderSubscriber subscriber = new OrderSubscriber();
+        bus.post(new Order());
+
+        guava.register(subscriber);
+        bus.post(new Order());
+
+        assertEquals(1, subscriber.orders.size());
+    }
+
+    @Test
+    public void post_async_completes_once_all_the_delegates_are_done() throws Exception {
+        Pending first = new Pending();
+        Pending second = new Pending();
+        MultipleEventBus bus = new MultipleEventBus().add(first).add(second);
+
+        CompletableFuture<Void> done = bus.postAsync(new Order()).toCompletableFuture();
+        first.future.complete(null);
+        assertFalse(done.isDone());
+
+        second.future.complete(null);
+        done.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void post_async_fails_with_the_first_failure_and_suppresses_the_others() throws Exception {
+        Pending first = new Pending();
+        Pending second = new Pending();
+        Recorder third = new Recorder(Event.class);
+        MultipleEventBus bus = new MultipleEventBus().add(first).add(second).add(third);
+
+        CompletableFuture<Void> done = bus.postAsync(new Order()).toCompletableFuture();
+        IllegalStateException firstFailure = new IllegalStateException("first");
+        IllegalStateException secondFailure = new IllegalStateException("second");
+        second.future.completeExceptionally(secondFailure);
+        first.future.completeExceptionally(firstFailure);
+
+        try {
+            done.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertSame(firstFailure, e.getCause());
+            assertArrayEquals(new Throwable[]{secondFailure}, firstFailure.getSuppressed());
+        }
+        assertEquals(1, third.events.size());
+    }
+
+    @Test
+    public void post_async_fails_when_a_delegate_throws_without_preventing_the_others() throws Exception {
+        EventBus failing = events -> {
+            throw new IllegalStateException("down");
+        };
+        Recorder recorder = new Recorder(Event.class);
+        MultipleEventBus bus = new MultipleEventBus().add(failing).add(recorder);
+
+        try {
+            bus.postAsync(new Order()).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertEquals("down", e.getCause().getMessage());
+        }
+        assertEquals(1, recorder.events.size());
+    }
+
+    @Test
+    public void post_async_fails_a_delegate_not_done_within_its_timeout() throws Exception {
+        Pending slow = new Pending();
+        Pending waited = new Pending();
+        MultipleEventBus bus = new MultipleEventBus().add(slow, 50, TimeUnit.MILLISECONDS).add(waited);
+
+        CompletableFuture<Void> done = bus.postAsync(new Order()).toCompletableFuture();
+        waited.future.complete(null);
+
+        try {
+            done.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void post_async_applies_the_default_timeout_to_delegates_added_without_one() throws Exception {
+        Pending slow = new Pending();
+        Pending patient = new Pending();
+        MultipleEventBus bus = new MultipleEventBus().add(slow).add(patient, 1, TimeUnit.HOURS);
+        bus.setTimeout(50, TimeUnit.MILLISECONDS);
+
+        CompletableFuture<Void> done = bus.postAsync(new Order()).toCompletableFuture();
+        Thread.sleep(200);
+        assertFalse(done.isDone());
+
+        patient.future.complete(null);
+        try {
+            done.get(5, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void post_async_waits_for_delegates_without_timeout() throws Exception {
+        Pending slow = new Pending();
+        MultipleEventBus bus = new MultipleEventBus().add(slow);
+
+        CompletableFuture<Void> done = bus.postAsync(new Order()).toCompletableFuture();
+        Thread.sleep(100);
+        assertFalse(done.isDone());
+
+        slow.future.complete(null);
+        done.get(5, TimeUnit.SECONDS);
+    }
+
+    static class Order extends Event {
+    }
+
+    static class Invoice extends Event {
+    }
+
+    public static class OrderSubscriber {
+
+        final List<Order> orders = new CopyOnWriteArrayList<>();
+
+        @Subscribe
+        public void on(Order order) {
+            orders.add(order);
+        }
+    }
+
+    /**
+     * Completes its async posts when told to
+     */
+    static class Pending implements EventBus {
+
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        @Override
+        public void post(Stream<? extends Event> eventStream) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletionStage<Void> postAsync(Stream<? extends Event> eventStream) {
+            return future;
+        }
+    }
+
+    static class Recorder implements EventBus {
+
+        final List<Class<?>> types;
+        final List<Event> events = new CopyOnWriteArrayList<>();
+        volatile int posts;
+
+        Recorder(Class<?>... types) {
+            this.types = Arrays.asList(types);
+        }
+
+        @Override
+        public void post(Stream<? extends Event> eventStream) {
+            posts++;
+            eventStream.forEach(events::add);
+        }
+
+        @Override
+        public Collection<Class<?>> getAcceptedTypes() {
+            return types;
+        }
+    }
+
+}
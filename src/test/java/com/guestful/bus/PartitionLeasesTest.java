@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import com.github.fakemongo.Fongo;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class PartitionLeasesTest {
+
+    private DBCollection leases;
+
+    @Before
+    public void setUp() {
+        leases = new Fongo("test").getDB("test").getCollection("leases");
+    }
+
+    @Test
+    public void a_single_node_leases_all_partitions() {
+        PartitionLeases node = new PartitionLeases(leases, 4, 60000);
+
+        node.rebalance();
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), node.getOwned());
+    }
+
+    @Test
+    public void does_not_acquire_partitions_leased_by_another_node() {
+        PartitionLeases first = new PartitionLeases(leases, 4, 60000);
+        PartitionLeases second = new PartitionLeases(leases, 4, 60000);
+        first.rebalance();
+
+        second.rebalance();
+
+        assertEquals(Collections.emptyList(), second.getOwned());
+        assertEquals(4, leases.count(new BasicDBObject("type", "partition").append("owner", new BasicDBObject("$ne", null))));
+    }
+
+    @Test
+    public void shares_partitions_fairly_between_live_nodes() {
+        PartitionLeases first = new PartitionLeases(leases, 5, 60000);
+        PartitionLeases second = new PartitionLeases(leases, 5, 60000);
+        first.rebalance();
+        second.rebalance();
+
+        // the first node releases the partitions above its fair share of 3, which the second node takes
+        first.rebalance();
+        second.rebalance();
+
+        assertEquals(Arrays.asList(0, 1, 2), first.getOwned());
+        assertEquals(Arrays.asList(3, 4), second.getOwned());
+    }
+
+    @Test
+    public void releases_its_partitions_on_close() {
+        PartitionLeases first = new PartitionLeases(leases, 4, 60000);
+        PartitionLeases second = new PartitionLeases(leases, 4, 60000);
+        first.rebalance();
+        second.rebalance();
+
+        first.close();
+        second.rebalance();
+
+        assertEquals(Collections.emptyList(), first.getOwned());
+        assertEquals(Arrays.asList(0, 1, 2, 3), second.getOwned());
+        assertEquals(1, leases.count(new BasicDBObject("type", "node")));
+    }
+
+    @Test
+    public void takes_over_the_partitions_of_a_node_whose_leases_expired() throws Exception {
+        PartitionLeases dead = new PartitionLeases(leases, 4, 100);
+        PartitionLeases live = new PartitionLeases(leases, 4, 100);
+        dead.rebalance();
+        live.rebalance();
+        assertEquals(Collections.emptyList(), live.getOwned());
+
+        Thread.sleep(150);
+        live.rebalance();
+
+        assertEquals(Arrays.asList(0, 1, 2, 3), live.getOwned());
+    }
+
+    @Test
+    public void rebalances_once_per_third_of_the_lease_timeout() throws Exception {
+        PartitionLeases first = new PartitionLeases(leases, 2, 300);
+        PartitionLeases second = new PartitionLeases(leases, 2, 300);
+        first.rebalanceIfDue();
+        second.rebalanceIfDue();
+        first.rebalanceIfDue();
+        assertEquals(Arrays.asList(0, 1), first.getOwned());
+
+        Thread.sleep(150);
+        first.rebalanceIfDue();
+
+        assertEquals(Collections.singletonList(0), first.getOwned());
+    }
+
+    @Test
+    public void concurrent_rebalances_of_a_node_agree_on_its_partitions() throws Exception {
+        PartitionLeases node = new PartitionLeases(leases, 8, 60000);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            threads.add(new Thread(node::rebalance));
+        }
+
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7), node.getOwned());
+        assertEquals(8, leases.count(new BasicDBObject("type", "partition").append("owner", new BasicDBObject("$ne", null))));
+    }
+
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class RedissonEventBusTest {
+
+    private final List<Object> published = new ArrayList<>();
+    private final List<Event> receivedByA = new ArrayList<>();
+    private final List<Event> receivedByB = new ArrayList<>();
+    private final RedissonEventBus a = new RedissonEventBus(events -> events.forEach(receivedByA::add), published::add);
+    private final RedissonEventBus b = new RedissonEventBus(events -> events.forEach(receivedByB::add), published::add);
+
+    @Test
+    public void delivers_events_to_the_other_nodes_only() {
+        Ping event = new Ping("ping");
+
+        a.post(event);
+        deliver();
+
+        assertTrue(receivedByA.isEmpty());
+        assertEquals(1, receivedByB.size());
+        assertSame(event, receivedByB.get(0));
+        assertFalse(receivedByB.get(0).isLocal());
+        assertEquals(a.getNodeId(), receivedByB.get(0).getEmiter());
+    }
+
+    @Test
+    public void delivers_encoded_events_to_the_other_nodes_only() {
+        a.setCodec(new TextCodec());
+        b.setCodec(new TextCodec());
+        Ping event = new Ping("ping");
+
+        a.post(event);
+        deliver();
+
+        assertTrue(receivedByA.isEmpty());
+        assertEquals(1, receivedByB.size());
+        assertEquals("ping", ((Ping) receivedByB.get(0)).text);
+        assertEquals(event.getId(), receivedByB.get(0).getId());
+        assertEquals(a.getNodeId(), receivedByB.get(0).getEmiter());
+    }
+
+    @Test
+    public void skips_its_own_echoes_when_the_event_is_posted_on_several_transports() {
+        List<Object> otherTopic = new ArrayList<>();
+        RedissonEventBus other = new RedissonEventBus(events -> {
+        }, otherTopic::add);
+        Ping event = new Ping("ping");
+
+        a.post(event);
+        other.post(event);
+
+        assertNull(event.getEmiter());
+        deliver();
+        assertTrue(receivedByA.isEmpty());
+        assertEquals(1, receivedByB.size());
+    }
+
+    @Test
+    public void only_publishes_local_cluster_events() {
+        Ping remote = new Ping("remote");
+        remote.setLocal(false);
+
+        a.post(remote, new NotClustered());
+
+        assertTrue(published.isEmpty());
+    }
+
+    private void deliver() {
+        for (Object message : published) {
+            a.receive(message);
+            b.receive(message);
+        }
+    }
+
+    @Cluster
+    public static class Ping extends Event {
+
+        final String text;
+
+        Ping(String text) {
+            this.text = text;
+        }
+    }
+
+    public static class NotClustered extends Event {
+    }
+
+    static class TextCodec implements EventCodec {
+
+        @Override
+        public String getName() {
+            return "text";
+        }
+
+        @Override
+        public byte[] encode(Event event) {
+            return (event.getId() + "\n" + ((Ping) event).text).getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+            String[] parts = new String(bytes, StandardCharsets.UTF_8).split("\n", 2);
+            Ping event = new Ping(parts[1]);
+            event.setId(parts[0]);
+            return eventType.cast(event);
+        }
+    }
+
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class RingBufferTest {
+
+    @Test
+    public void takes_in_insertion_order_across_wrap_around() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(3, OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(buffer.put(i));
+            assertEquals(i, buffer.take().intValue());
+        }
+        assertEquals(0, buffer.size());
+        assertEquals(0, buffer.getDropped());
+    }
+
+    @Test
+    public void drop_newest_discards_new_elements_when_full() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, OverflowPolicy.DROP_NEWEST);
+        assertTrue(buffer.put(1));
+        assertTrue(buffer.put(2));
+        assertFalse(buffer.put(3));
+        assertEquals(2, buffer.size());
+        assertEquals(1, buffer.getDropped());
+        assertEquals(1, buffer.take().intValue());
+        assertEquals(2, buffer.take().intValue());
+    }
+
+    @Test
+    public void drop_oldest_discards_oldest_elements_when_full() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(2, OverflowPolicy.DROP_OLDEST);
+        assertTrue(buffer.put(1));
+        assertTrue(buffer.put(2));
+        assertFalse(buffer.put(3));
+        assertFalse(buffer.put(4));
+        assertEquals(2, buffer.size());
+        assertEquals(2, buffer.getDropped());
+        assertEquals(3, buffer.take().intValue());
+        assertEquals(4, buffer.take().intValue());
+    }
+
+    @Test
+    public void block_waits_for_room() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(1, OverflowPolicy.BLOCK);
+        buffer.put(1);
+        CountDownLatch put = new CountDownLatch(1);
+        Thread producer = new Thread(() -> {
+            try {
+                buffer.put(2);
+                put.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        producer.start();
+        assertFalse(put.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, buffer.take().intValue());
+        assertTrue(put.await(5, TimeUnit.SECONDS));
+        assertEquals(2, buffer.take().intValue());
+        assertEquals(0, buffer.getDropped());
+        producer.join();
+    }
+
+    @Test
+    public void take_waits_for_an_element() throws Exception {
+        RingBuffer<String> buffer = new RingBuffer<>(4, OverflowPolicy.BLOCK);
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                buffer.put("a");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }).start();
+        assertEquals("a", buffer.take());
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void blocked_put_is_interruptible() throws Exception {
+        RingBuffer<Integer> buffer = new RingBuffer<>(1, OverflowPolicy.BLOCK);
+        buffer.put(1);
+        Thread current = Thread.currentThread();
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException ignored) {
+            }
+            current.interrupt();
+        }).start();
+        buffer.put(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejects_empty_capacity() {
+        new RingBuffer<Integer>(0, OverflowPolicy.BLOCK);
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class StripedExecutorTest {
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void runs_tasks_of_a_key_in_submission_order() throws Exception {
+        StripedExecutor executor = new StripedExecutor(pool, 4);
+        int keys = 16;
+        int tasksPerKey = 1000;
+        Map<Integer, List<Integer>> runs = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(keys * tasksPerKey);
+        for (int i = 0; i < tasksPerKey; i++) {
+            for (int key = 0; key < keys; key++) {
+                int k = key;
+                int n = i;
+                executor.execute(k, () -> {
+                    runs.computeIfAbsent(k, x -> Collections.synchronizedList(new ArrayList<>())).add(n);
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (int key = 0; key < keys; key++) {
+            List<Integer> run = runs.get(key);
+            assertEquals(tasksPerKey, run.size());
+            for (int i = 0; i < tasksPerKey; i++) {
+                assertEquals(i, run.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void never_runs_tasks_of_a_key_concurrently() throws Exception {
+        StripedExecutor executor = new StripedExecutor(pool, 2);
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger overlaps = new AtomicInteger();
+        int tasks = 200;
+        CountDownLatch done = new CountDownLatch(tasks);
+        List<Thread> posters = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            Thread poster = new Thread(() -> {
+                for (int i = 0; i < tasks / 4; i++) {
+                    executor.execute("key", () -> {
+                        if (running.incrementAndGet() > 1) {
+                            overlaps.incrementAndGet();
+                        }
+                        Thread.yield();
+                        running.decrementAndGet();
+                        done.countDown();
+                    });
+                }
+            });
+            poster.start();
+            posters.add(poster);
+        }
+        for (Thread poster : posters) {
+            poster.join();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+    }
+
+    @Test
+    public void runs_different_stripes_in_parallel() throws Exception {
+        StripedExecutor executor = new StripedExecutor(pool, 2);
+        CountDownLatch bothRunning = new CountDownLatch(2);
+        CountDownLatch done = new CountDownLatch(2);
+        for (int key = 0; key < 2; key++) {
+            executor.execute(key, () -> {
+                bothRunning.countDown();
+                try {
+                    if (bothRunning.await(5, TimeUnit.SECONDS)) {
+                        done.countDown();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void keeps_running_after_a_failed_task() throws Exception {
+        StripedExecutor executor = new StripedExecutor(pool, 1);
+        CountDownLatch done = new CountDownLatch(1);
+        executor.execute("key", () -> {
+            throw new IllegalStateException("expected");
+        });
+        executor.execute("key", done::countDown);
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class TimingWheelSchedulerTest {
+
+    private final BlockingQueue<Event> fired = new LinkedBlockingQueue<>();
+    private final EventBus bus = events -> events.forEach(fired::add);
+    private TimingWheelScheduler scheduler;
+
+    @Before
+    public void setUp() {
+        scheduler = new TimingWheelScheduler(bus, 1, TimeUnit.MILLISECONDS, 8);
+        scheduler.init();
+    }
+
+    @After
+    public void tearDown() {
+        scheduler.close();
+    }
+
+    @Test
+    public void fires_events_in_scheduled_order() throws Exception {
+        Named late = new Named("late");
+        Named early = new Named("early");
+        scheduler.schedule(Stream.of(scheduled(late, 300, null), scheduled(early, 100, null)));
+
+        long start = System.currentTimeMillis();
+        assertSame(early, fired.poll(5, TimeUnit.SECONDS));
+        assertTrue(System.currentTimeMillis() - start >= 90);
+        assertSame(late, fired.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void fires_events_beyond_the_span_of_the_first_wheel() throws Exception {
+        // 8 buckets of 1ms: these timers start in overflow wheels and cascade down
+        List<Named> events = new ArrayList<>();
+        for (int delay = 20; delay <= 200; delay += 20) {
+            Named event = new Named("in " + delay);
+            events.add(event);
+            scheduler.schedule(Stream.of(scheduled(event, delay, null)));
+        }
+
+        for (Named event : events) {
+            assertSame(event, fired.poll(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void fires_past_due_events_right_away() throws Exception {
+        Named event = new Named("past");
+        scheduler.schedule(Stream.of(scheduled(event, -1000, null)));
+
+        assertSame(event, fired.poll(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void produce_fires_due_events_without_the_ticker() throws Exception {
+        scheduler.close();
+        Named event = new Named("due");
+        scheduler.schedule(Stream.of(scheduled(event, 50, null)));
+
+        Thread.sleep(100);
+        assertTrue(fired.isEmpty());
+        scheduler.produce();
+        assertSame(event, fired.poll());
+    }
+
+    @Test
+    public void cancelled_events_do_not_fire() throws Exception {
+        Named kept = new Named("kept");
+        scheduler.schedule(Stream.of(scheduled(new Named("cancelled"), 100, "k1"), scheduled(kept, 150, "k2")));
+        scheduler.cancel("k1");
+
+        assertSame(kept, fired.poll(5, TimeUnit.SECONDS));
+        assertNull(fired.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void rescheduled_events_fire_at_their_new_time() throws Exception {
+        Named moved = new Named("moved");
+        Named other = new Named("other");
+        scheduler.schedule(Stream.of(scheduled(moved, 100, "k1"), scheduled(other, 200, null)));
+        scheduler.reschedule("k1", new Date(System.currentTimeMillis() + 400));
+
+        assertSame(other, fired.poll(5, TimeUnit.SECONDS));
+        assertSame(moved, fired.poll(5, TimeUnit.SECONDS));
+        assertNull(fired.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void scheduling_a_key_again_replaces_its_pending_event() throws Exception {
+        Named replaced = new Named("replaced");
+        Named replacement = new Named("replacement");
+        scheduler.schedule(Stream.of(scheduled(replaced, 100, "k1")));
+        scheduler.schedule(Stream.of(scheduled(replacement, 150, "k1")));
+
+        assertSame(replacement, fired.poll(5, TimeUnit.SECONDS));
+        assertNull(fired.poll(150, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void hands_events_beyond_the_horizon_to_the_persistent_scheduler() throws Exception {
+        RecordingScheduler persistent = new RecordingScheduler();
+        scheduler.setPersistentScheduler(persistent, 1, TimeUnit.SECONDS);
+        Named near = new Named("near");
+        Named far = new Named("far");
+
+        scheduler.schedule(Stream.of(scheduled(near, 50, null), scheduled(far, 60000, "k1")));
+        assertEquals(1, persistent.scheduled.size());
+        assertSame(far, persistent.scheduled.get(0).getScheduledEvent());
+        assertSame(near, fired.poll(5, TimeUnit.SECONDS));
+
+        // a key is pending once across both schedulers
+        scheduler.schedule(Stream.of(scheduled(near, 50, "k1")));
+        assertEquals(1, persistent.cancelled.size());
+        assertEquals("k1", persistent.cancelled.get(0));
+        assertSame(near, fired.poll(5, TimeUnit.SECONDS));
+
+        scheduler.schedule(Stream.of(scheduled(far, 60000, "k2")));
+        scheduler.cancel("k2");
+        scheduler.reschedule("k2", new Date());
+        assertEquals("k2", persistent.cancelled.get(1));
+        assertEquals("k2", persistent.rescheduled.get(0));
+
+        // keys never handed to the persistent scheduler are not cancelled there
+        scheduler.schedule(Stream.of(scheduled(near, 50, "k3")));
+        assertEquals(2, persistent.cancelled.size());
+    }
+
+    static ScheduledEvent scheduled(Event event, long delay, String key) {
+        ScheduledEvent scheduledEvent = new ScheduledEvent();
+        scheduledEvent.setScheduledEvent(event);
+        scheduledEvent.setScheduledTime(new Date(System.currentTimeMillis() + delay));
+        scheduledEvent.setKey(key);
+        return scheduledEvent;
+    }
+
+    static class RecordingScheduler implements Scheduler {
+
+        final List<ScheduledEvent> scheduled = new ArrayList<>();
+        final List<String> cancelled = new ArrayList<>();
+        final List<String> rescheduled = new ArrayList<>();
+
+        @Override
+        public void schedule(Stream<ScheduledEvent> scheduledEvents) {
+            scheduledEvents.forEach(scheduled::add);
+        }
+
+        @Override
+        public void produce() {
+        }
+
+        @Override
+        public void cancel(String key) {
+            cancelled.add(key);
+        }
+
+        @Override
+        public void reschedule(String key, Date scheduledTime) {
+            rescheduled.add(key);
+        }
+    }
+
+    public static class Named extends Event {
+
+        private final String name;
+
+        Named(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+}
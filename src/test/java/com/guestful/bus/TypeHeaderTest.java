@@ -0,0 +1,114 @@
+/**
+ * Copyright (C) 2013 Guestful (info@guestful.com)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *         http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guestful.bus;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Mathieu Carbou (mathieu.carbou@gmail.com)
+ */
+public class TypeHeaderTest {
+
+    private final EventCodec codec = new TestCodec(300);
+
+    @Test
+    public void writes_registered_types_as_a_varint() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TypeHeader.write(out, codec, Registered.class);
+
+        assertEquals(2, out.size());
+        assertEquals(300, TypeHeader.readTypeId(new ByteArrayInputStream(out.toByteArray())));
+    }
+
+    @Test
+    public void writes_the_name_of_unregistered_types() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TypeHeader.write(out, codec, Unregistered.class);
+        out.write(42);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+        assertEquals(0, TypeHeader.readTypeId(in));
+        assertEquals(Unregistered.class.getName(), TypeHeader.readName(in));
+        assertEquals(42, in.read());
+    }
+
+    @Test
+    public void round_trips_large_type_ids() throws Exception {
+        for (int typeId : new int[]{1, 127, 128, 16383, 16384, Integer.MAX_VALUE}) {
+            EventCodec codec = new TestCodec(typeId);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            TypeHeader.write(out, codec, Registered.class);
+            assertEquals(typeId, TypeHeader.readTypeId(new ByteArrayInputStream(out.toByteArray())));
+        }
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejects_truncated_names() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        TypeHeader.write(out, codec, Unregistered.class);
+        byte[] bytes = out.toByteArray();
+
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, 0, bytes.length - 1);
+        TypeHeader.readTypeId(in);
+        TypeHeader.readName(in);
+    }
+
+    public static class Registered extends Event {
+    }
+
+    public static class Unregistered extends Event {
+    }
+
+    /**
+     * Registers an id for {@link Registered} only
+     */
+    private static class TestCodec implements EventCodec {
+
+        private final int registeredId;
+
+        TestCodec(int registeredId) {
+            this.registeredId = registeredId;
+        }
+
+        @Override
+        public String getName() {
+            return "test";
+        }
+
+        @Override
+        public byte[] encode(Event event) {
+            return new byte[0];
+        }
+
+        @Override
+        public <T extends Event> T decode(byte[] bytes, Class<T> eventType) {
+            return null;
+        }
+
+        @Override
+        public int getTypeId(Class<? extends Event> eventType) {
+            return eventType == Registered.class ? registeredId : 0;
+        }
+    }
+
+}